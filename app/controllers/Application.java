@@ -28,7 +28,7 @@ public class Application extends Controller {
    */
   static void setConnectedUser() {
     if(Security.isConnected()) {
-      User user = User.find("byEmail", Security.connected()).first();
+      User user = ConnectedUser.get();
       renderArgs.put("loggedInAs", user);
     }
   }
@@ -43,7 +43,7 @@ public class Application extends Controller {
         renderArgs.put("blogBaseline", Play.configuration.getProperty("blog.baseline"));
 				
         if(Security.isConnected()) {
-            User user = User.find("byEmail", Security.connected()).first();
+            User user = ConnectedUser.get();
             renderArgs.put("user", user);
         }
     }
@@ -56,31 +56,59 @@ public class Application extends Controller {
         //Connection conn = DB.getConnection();
         //conn.createStatement().execute("select * from products");
 
-      //Get a list of all restaurants for the sidebar
-      List<Restaurant> restaurants = Restaurant.find("order by rating desc").from(1).fetch(10);
+      //Get the top restaurants for the sidebar, straight from the in-memory leaderboard
+      List<RestaurantLeaderboard.Entry> restaurants = RestaurantLeaderboard.top(SIDEBAR_SIZE);
 
         Post frontPost = Post.find("order by postedAt desc").first();
-        render(restaurants, frontPost);
+
+      //The hottest posts, straight from the in-memory ranking, leaving out the newest post already shown as the front post
+      List<Post> hotPosts = HotPosts.top(HOT_SIZE + 1);
+      if(frontPost != null)
+          hotPosts.remove(frontPost);
+      if(hotPosts.size() > HOT_SIZE)
+          hotPosts = hotPosts.subList(0, HOT_SIZE);
+        render(restaurants, frontPost, hotPosts);
     }
 
+    /* Number of restaurants listed in the sidebar */
+    public static final int SIDEBAR_SIZE = 10;
+
+    /* Number of hot posts listed on the front page */
+    public static final int HOT_SIZE = 10;
+
   /**
    * Shows a specific post (restaurant review)
    * @param id The ID of the post
    */
   public static void show(Long id) {
         Post post = Post.findById(id);
-        String randomID = Codec.UUID();
-        render(post, randomID);
+        render(post);
     }
 
   /**
    * Adds to a post's like count. Should be called when the Like button is clicked.
+   * Users must be logged in, and can only like a post once. Renders a JSON object:
+   * {
+   *  liked: whether this click added a like
+   *  likecount: the post's number of likes, including those not written yet
+   * }
+   * If the user isn't logged in, liked is false. If the post doesn't exist,
+   * likecount is also zero.
+   *
    * @param id The ID of the post
    */
   public static void addLikeCount(Long id){
-    Post post = Post.findById(id);
-    post.likecount = post.likecount++;
-    post.save();
+    User user = Security.isConnected() ? ConnectedUser.get() : null;
+    Post post = id == null ? null : (Post)Post.findById(id);
+
+    boolean liked = user != null && post != null && LikeCounters.like(user.id, post.id);
+    if(liked)
+        TrendTracker.liked(post);
+
+    Map<String, Object> response = new HashMap<String, Object>();
+    response.put("liked", liked);
+    response.put("likecount", post == null ? 0 : post.likecount + LikeCounters.pending(post.id));
+    renderJSON(response);
 }
 
 
@@ -92,7 +120,7 @@ public class Application extends Controller {
    * @param author  The name the user entered to comment, if they aren't logged in
    * @param content The comment
    * @param code    Captcha, only required if the user isn't logged in
-   * @param randomID Random ID generated for the captcha
+   * @param randomID ID of the captcha challenge, as issued by challenge()
    */
   public static void postComment(
         Long postId,
@@ -108,13 +136,13 @@ public class Application extends Controller {
                 validation.required(author).message("Please enter your name.");
                 validation.required(code).message("You must login or enter the code to post a comment.");
                 validation.required(randomID);
-                validation.equals(code, Cache.get(randomID)).message("Invalid code. Please type it again");
+                validation.isTrue(ChallengeStore.consume(randomID, code)).message("Invalid code. Please type it again");
             }
 
 
             Post post = Post.findById(postId);
             if(validation.hasErrors()) {
-                render("Application/show.html", post, randomID);
+                render("Application/show.html", post);
             }
 
             //Call two different overloaded functions, depending on whether the user is posting as a guest or a logged in user.
@@ -127,47 +155,107 @@ public class Application extends Controller {
                     author_name = user.firstname;
             }
 
+            TrendTracker.commented(post);
             flash.success("Thanks for posting, %s.", author_name);
-            Cache.delete(randomID);
             show(postId);
     }
 
    /**
-   * Function called by the template to generate a random capctha image
-   * @param id The captcha's random ID
+   * Issues a new captcha challenge. Called by every form with a captcha (post
+   * comments, review comments and sign up) when it's opened, so challenges are
+   * only issued to people about to use them. Renders a JSON
+   * object with the challenge's ID and its image:
+   * {
+   *  id: the ID to send back along with the code
+   *  image: the captcha, as a data: URI
+   * }
+   * Captchas are never rendered on the request thread: if none is ready, answers
+   * with a 503, and the form asks again a moment later.
    */
-    public static void captcha(String id) {
-        Images.Captcha captcha = Images.captcha();
-        String code = captcha.getText("#E4EAFD");
-        Cache.set(id, code, "30mn");    //Capctha will expire after 30 minutes.
-        renderBinary(captcha);
+    public static void challenge() {
+        CaptchaPool.Rendered captcha = CaptchaPool.take();
+        if(captcha == null) {
+            response.setHeader("Retry-After", "1");
+            error(503, "No captcha ready, please try again");
+        }
+        Map<String, String> challenge = new HashMap<String, String>();
+        challenge.put("id", ChallengeStore.issue(captcha.code));
+        challenge.put("image", "data:image/png;base64," + Codec.encodeBASE64(captcha.png));
+        response.setHeader("Cache-Control", "no-store");
+        renderJSON(challenge);
     }
 
+    /**
+     * Renders a JSON object listing the tags and restaurants getting the most
+     * posts, comments and likes over a window of time:
+     * {
+     *  tags: names of the trending tags
+     *  restaurants: [{id: restaurant ID, name: restaurant name}, ...]
+     * }
+     * @param window "hour", "day" or "week". Defaults to "day"
+     */
+    public static void trending(String window) {
+        TrendTracker.Window trendWindow = TrendTracker.Window.DAY;
+        if("hour".equals(window))
+            trendWindow = TrendTracker.Window.HOUR;
+        else if("week".equals(window))
+            trendWindow = TrendTracker.Window.WEEK;
+
+        List<String> tags = TrendTracker.topTags(trendWindow, TRENDING_SIZE);
+        List<Long> ids = TrendTracker.topRestaurants(trendWindow, TRENDING_SIZE);
+
+        //Load the restaurants, and keep them in trending order
+        Map<Long, String> names = new HashMap<Long, String>();
+        if(!ids.isEmpty()) {
+            List<Object[]> rows = Restaurant.find("select r.id, r.name from Restaurant r where r.id in (?1)", ids).fetch();
+            for(Object[] row : rows)
+                names.put((Long)row[0], (String)row[1]);
+        }
+        List<Map> restaurants = new ArrayList<Map>();
+        for(Long id : ids) {
+            if(names.containsKey(id)) {
+                Map<String, Object> restaurant = new HashMap<String, Object>();
+                restaurant.put("id", id);
+                restaurant.put("name", names.get(id));
+                restaurants.add(restaurant);
+            }
+        }
+
+        Map<String, Object> trends = new HashMap<String, Object>();
+        trends.put("tags", tags);
+        trends.put("restaurants", restaurants);
+        renderJSON(trends);
+    }
+
+    /* Number of tags and restaurants to list as trending */
+    public static final int TRENDING_SIZE = 10;
+
     /**
      * Lists all posts with a specific tag
-     * @param tag The tag to search for
+     * @param tag    The tag to search for
+     * @param before Cursor of the page to display, or null for the first page
      */
-    public static void listTagged(String tag) {
-        List<Post> posts = Post.findTaggedWith(tag);
-        render(tag, posts);
+    public static void listTagged(String tag, String before) {
+        KeysetPage<Post> page = Post.findTaggedWith(new String[] {tag}, null, null, before, TagIndex.PAGE_SIZE);
+        List<Post> posts = page.items;
+        int count = TagIndex.count(tag);
+        render(tag, posts, count, page);
     }
 
     /**
      * Function called by the templates to render the image associated with a specific post
-     * @param id The post ID
+     * @param id   The post ID
+     * @param size "thumb", "card" or "full". Defaults to "full"
+     * @param v    Hash of the picture, if the URL is versioned
      */
-    public static void postPic(Long id) {
+    public static void postPic(Long id, String size, String v) {
 	Post post = Post.findById(id);
 
         //If it's not found, render the appropriate "Not found" message
         notFoundIfNull(post);
-	response.setContentTypeIfNotSet(post.pic.type());
-	
+
         //Otherwise, render the image
-        if(post.pic.get() != null){
-		renderBinary(post.pic.get());
-	}
-	
+        ImageServing.serve(post.pic, post.picHash, size, v);
     }
 
     /**
@@ -184,11 +272,6 @@ public class Application extends Controller {
      * @return The User object representing the logged in user. Returns null if not logged in.
      */
     public static User getUser() {
-	if(Security.isConnected()) {
-            User user = User.find("byEmail", Security.connected()).first();
-            return user;
-	}
-
-	else return null;   //Return null if no one is logged in.
+	return ConnectedUser.get();    //Returns null if no one is logged in.
     }
 }
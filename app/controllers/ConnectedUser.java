@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * ConnectedUser.java
+ *
+ * Resolves the User object of the person who is currently logged in.
+ *
+ * Many controllers need the connected user, often several times during the same
+ * request (for example in a @Before filter, then again in the action and in
+ * followerRelations). The user is looked up once per request and kept in the
+ * request's args for the rest of it.
+ *
+ * Across requests, a bounded map from e-mail address to user ID is kept, so
+ * finding the user costs a lookup by primary key instead of a query on the
+ * e-mail column. UserProfile.save must call invalidate() when a user changes
+ * their e-mail address.
+ *
+ * This class is not a controller. It is used by the controllers the same way
+ * followerRelations is.
+ *
+ ******************************************************************************/
+
+package controllers;
+
+import play.*;
+import play.mvc.*;
+
+import java.util.*;
+import models.*;
+
+public class ConnectedUser {
+
+    /* Key the user is stored under in the request's args */
+    private static final String REQUEST_KEY = "connectedUser";
+
+    /* Maximum number of e-mail addresses to remember the user ID of */
+    public static final int CACHE_SIZE = Integer.parseInt(Play.configuration.getProperty("connecteduser.cache.size", "10000"));
+
+    //Least recently used e-mail addresses are dropped first
+    private static final Map<String, Long> idsByEmail = Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    });
+
+    /**
+     * Returns the user who is logged in. The user is only looked up the first
+     * time this is called during a request.
+     *
+     * @return The User object representing the logged in user. Returns null if not logged in.
+     */
+    public static User get() {
+        if(!Security.isConnected())
+            return null;
+
+        Http.Request request = Http.Request.current();
+        if(request != null && request.args.containsKey(REQUEST_KEY))
+            return (User)request.args.get(REQUEST_KEY);
+
+        User user = findByEmail(Security.connected());
+        if(request != null)
+            request.args.put(REQUEST_KEY, user);
+
+        return user;
+    }
+
+    /**
+     * Forgets the user ID remembered for an e-mail address, as well as the user
+     * looked up during the current request.
+     * Should be called whenever a user's e-mail address changes.
+     *
+     * @param email The e-mail address which no longer belongs to the same user
+     */
+    public static void invalidate(String email) {
+        idsByEmail.remove(email);
+
+        Http.Request request = Http.Request.current();
+        if(request != null)
+            request.args.remove(REQUEST_KEY);
+    }
+
+    /**
+     * Finds a user by e-mail address, using the remembered user ID when there is one
+     *
+     * @param email The user's e-mail address
+     * @return      The user found, or null if there isn't one
+     */
+    private static User findByEmail(String email) {
+        Long id = idsByEmail.get(email);
+        if(id != null) {
+            User user = User.findById(id);
+
+            //Make sure the address still belongs to them, in case it was changed elsewhere
+            if(user != null && email.equals(user.email))
+                return user;
+
+            idsByEmail.remove(email);
+        }
+
+        User user = User.find("byEmail", email).first();
+        if(user != null)
+            idsByEmail.put(email, user.id);
+
+        return user;
+    }
+}
@@ -30,7 +30,7 @@ public class Debug extends Controller {
    */
   static void setConnectedUser() {
     if(Security.isConnected()) {
-      User user = User.find("byEmail", Security.connected()).first();
+      User user = ConnectedUser.get();
       renderArgs.put("loggedInAs", user);
     }
   }
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * ImageServing.java
+ *
+ * Renders uploaded pictures for the image actions of the controllers
+ * (Application.postPic, Reviews.postPic, UserProfile.profilePic and
+ * RestaurantProfile.profilePic), so they all serve pictures the same way.
+ *
+ * Pictures are served at the size the page asks for, using the variants made
+ * by ImageVariants. Until the variant exists, the original is served.
+ *
+ * Every response carries an ETag made of the SHA-256 hash of the picture and
+ * the size of the file sent, and a Last-Modified date. Browsers asking whether
+ * their copy is still good get a 304 without the picture ever being read.
+ * Templates add the hash to picture URLs as a "v" parameter; since the URL
+ * changes whenever the picture does, variants served from those URLs are marked
+ * immutable and cached for a year. URLs without it must be revalidated every
+ * time. So must the original when it stands in for a variant which isn't ready
+ * yet: it has its own ETag, so it's never mistaken for the variant, and caches
+ * pick up the variant as soon as it exists.
+ *
+ * Pictures are served from memory-mapped regions of their files, never copied
+ * through the heap. They aren't handed to the server as files (RenderBinary),
+ * since Play then sets its own ETag and handles conditional and Range requests
+ * itself, replacing the headers set here. Range requests, used by browsers to
+ * resume downloads, are answered with 206 and only the bytes asked for. The
+ * most requested pictures are sent from the off-heap ImageCache instead, so
+ * they aren't read from disk every time.
+ *
+ * This class is not a controller. Like a controller's render methods, serve()
+ * ends the action by throwing the result.
+ *
+ ******************************************************************************/
+
+package controllers;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import play.*;
+import play.mvc.*;
+import play.mvc.results.*;
+import play.db.jpa.Blob;
+import play.exceptions.*;
+import play.utils.*;
+
+import models.*;
+
+public class ImageServing {
+
+    /* Cache-Control of URLs carrying the picture's hash */
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    /* Cache-Control of URLs without it */
+    private static final String REVALIDATE = "public, no-cache";
+
+    /**
+     * Renders a picture at some size. Does nothing if there's no picture, so the
+     * action can render something else instead.
+     *
+     * @param blob      The picture, which may be null or empty
+     * @param hash      The SHA-256 hash stored when the picture was uploaded, or
+     *                  null if it wasn't
+     * @param size      "thumb", "card" or "full". Defaults to "full"
+     * @param version   The "v" parameter of the URL, if any
+     */
+    public static void serve(Blob blob, String hash, String size, String version) {
+        if(blob == null || !blob.exists())
+            return;
+
+        Http.Response response = Http.Response.current();
+        ImageVariants.Size variantSize = ImageVariants.Size.parse(size);
+
+        File file = ImageVariants.file(blob, hash, variantSize);
+        String type = ImageVariants.type(blob);
+        String served = variantSize.name().toLowerCase();
+        boolean variant = file != null;
+        if(!variant) {
+            //The variant isn't ready, so the original stands in for it until it is
+            file = blob.getFile();
+            type = blob.type();
+            served = "orig";
+        }
+
+        //Blob files are never changed, only replaced by new ones, so the UUID will do for pictures which weren't hashed
+        String etag = "\"" + (hash != null ? hash : blob.getUUID()) + "-" + served + "\"";
+
+        response.setHeader("Cache-Control", variant && hash != null && hash.equals(version) ? IMMUTABLE : REVALIDATE);
+        checkModified(etag, file.lastModified());
+        send(file, type, etag, hash != null ? hash + "-" + served : null);
+    }
+
+    /**
+     * Renders a picture which isn't an upload, such as the default profile picture
+     *
+     * @param file  The picture's file
+     * @param type  Its content type
+     */
+    public static void serveFile(File file, String type) {
+        String etag = "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length()) + "\"";
+
+        Http.Response.current().setHeader("Cache-Control", REVALIDATE);
+        checkModified(etag, file.lastModified());
+        send(file, type, etag, null);
+    }
+
+    /**
+     * Sets the validators of a picture, and answers with a 304 if the browser's
+     * copy is still good
+     */
+    private static void checkModified(String etag, long lastModified) {
+        Http.Response response = Http.Response.current();
+        response.setHeader("Last-Modified", Utils.getHttpDateFormatter().format(new Date(lastModified)));
+        response.setHeader("ETag", etag);
+        response.setHeader("Accept-Ranges", "bytes");
+        if(!Http.Request.current().isModified(etag, lastModified))
+            throw new NotModified(etag);
+    }
+
+    /**
+     * Sends a picture's file, or the part of it which was asked for. Pictures
+     * with a content key, made of their hash and size, are cached once however
+     * many uploads share them.
+     */
+    private static void send(File file, String type, String etag, String contentKey) {
+        Http.Request request = Http.Request.current();
+        Http.Response.current().setContentTypeIfNotSet(type);
+
+        //Only honor a range if the browser's partial copy is of this same file. The
+        //ETag names the exact file sent, so a partial copy of the original standing
+        //in for a variant never matches the variant. If-Range needs a strong match,
+        //so weak ETags and dates get the whole file.
+        Http.Header range = request.headers.get("range");
+        Http.Header ifRange = request.headers.get("if-range");
+        if(range != null && (ifRange == null || etag.equals(ifRange.value().trim())))
+            serveRange(file, range.value());
+
+        ByteBuffer cached = ImageCache.get(file, contentKey);
+        if(cached != null)
+            throw new RenderBuffer(cached);
+
+        throw new FileContent(file, 0, file.length() - 1, false);
+    }
+
+    /**
+     * Answers a request for a single range of bytes of a file. Returns without
+     * doing anything if the range can't be parsed or asks for several ranges, in
+     * which case the whole file should be sent.
+     *
+     * @param file  The file
+     * @param range The Range header, such as "bytes=0-499", "bytes=500-" or "bytes=-500"
+     */
+    private static void serveRange(File file, String range) {
+        if(!range.startsWith("bytes=") || range.indexOf(',') >= 0)
+            return;
+
+        long length = file.length();
+        long start, end;
+        try {
+            String spec = range.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+            if(dash < 0)
+                return;
+
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if(first.length() == 0) {
+                //The last N bytes
+                start = Math.max(0, length - Long.parseLong(last));
+                end = length - 1;
+            }
+            else {
+                start = Long.parseLong(first);
+                end = last.length() == 0 ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            }
+        }
+        catch(NumberFormatException e) {
+            return;
+        }
+
+        if(start >= length || start > end) {
+            Http.Response response = Http.Response.current();
+            response.setHeader("Content-Range", "bytes */" + length);
+            throw new Status(416);
+        }
+
+        throw new FileContent(file, start, end, true);
+    }
+
+    /**
+     * Result sending a file, or one range of bytes of it, straight from a
+     * memory-mapped region of it. Unlike RenderBinary, leaves the headers set by
+     * serve() alone.
+     */
+    private static class FileContent extends Result {
+        private final File file;
+        private final long start;
+        private final long end;         //Inclusive
+        private final boolean partial;  //Whether to answer with 206 rather than 200
+
+        FileContent(File file, long start, long end, boolean partial) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.partial = partial;
+        }
+
+        public void apply(Http.Request request, Http.Response response) {
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                MappedByteBuffer region;
+                try {
+                    region = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, end - start + 1);
+                }
+                finally {
+                    raf.close();        //The mapping stays valid once the file is closed
+                }
+
+                if(partial) {
+                    response.status = 206;
+                    response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + file.length());
+                }
+                response.setHeader("Content-Length", String.valueOf(end - start + 1));
+                response.direct = new BufferInputStream(region);
+            }
+            catch(IOException e) {
+                throw new UnexpectedException(e);
+            }
+        }
+    }
+
+    /**
+     * Result sending a whole picture from a buffer of the ImageCache
+     */
+    private static class RenderBuffer extends Result {
+        private final ByteBuffer bytes;
+
+        RenderBuffer(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        public void apply(Http.Request request, Http.Response response) {
+            response.setHeader("Content-Length", String.valueOf(bytes.remaining()));
+            response.direct = new BufferInputStream(bytes);
+        }
+    }
+
+    /**
+     * Reads a memory-mapped region or a cached buffer, for the server to copy to
+     * the socket in chunks
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer region;
+
+        BufferInputStream(ByteBuffer region) {
+            this.region = region;
+        }
+
+        public int read() {
+            return region.hasRemaining() ? region.get() & 0xff : -1;
+        }
+
+        public int read(byte[] buffer, int offset, int length) {
+            if(!region.hasRemaining())
+                return -1;
+
+            int read = Math.min(length, region.remaining());
+            region.get(buffer, offset, read);
+            return read;
+        }
+
+        public int available() {
+            return region.remaining();
+        }
+    }
+}
@@ -31,7 +31,7 @@ public class RestaurantProfile extends Controller {
 
         //Add user information, if it's needed.
         if(Security.isConnected()) {
-		User user = User.find("byEmail", Security.connected()).first();
+		User user = ConnectedUser.get();
 		renderArgs.put("user", user);
 	}
     }
@@ -43,23 +43,35 @@ public class RestaurantProfile extends Controller {
     public static void index(Long id) {
         //Get restaurant & review information
         Restaurant restaurant = Restaurant.findById(id);
-        List<Post> restaurantReviews = Post.findPostsByRestaurantId(id);
-        String randomID = Codec.UUID();
+        KeysetPage<ReviewSummary> page = Post.findByRestaurant(id, null, REVIEWS_PAGE_SIZE);
 
-        //Get the review of the day
-        Calendar cal = Calendar.getInstance();
-        List<Post> topReviews = Post.find("select p from Post p where p.restaurant = ? order by p.rating desc", restaurant).fetch(7);
+        //Get the review of the day, which is picked once a day by the FeaturedReviewSelection job
+        Long featuredId = FeaturedReviews.forRestaurant(id);
+        Post reviewOfTheDay = featuredId == null ? null : (Post)Post.findById(featuredId);
 
-        //Get the 7 best reviews for this restaurant and use modulo to change between them each day of the week
-        try{
-            Post reviewOfTheDay = topReviews.get(cal.get(Calendar.DAY_OF_WEEK) % topReviews.size()); //Use top reviews.size instead of 7 because there may be less than 7 reviews found
-            render(restaurant, restaurantReviews, reviewOfTheDay, randomID);
-        }
-        catch(ArithmeticException e){ // 0 reviews returned
-            render(restaurant, restaurantReviews);
-        }
+        if(reviewOfTheDay != null)
+            render(restaurant, page, reviewOfTheDay);
+        else // 0 reviews
+            render(restaurant, page);
+
+
+    }
 
+    /* Number of reviews per page on a restaurant's profile */
+    public static final int REVIEWS_PAGE_SIZE = 20;
 
+    /**
+     * Renders a JSON object with the next page of a restaurant's reviews, used to
+     * load more reviews as the user scrolls down the profile:
+     * {
+     *  items: [{id, title, excerpt, postedAt, rating, likecount, authorId, authorName}, ...]
+     *  next: cursor of the page after this one, missing if this is the last one
+     * }
+     * @param id    The restaurant's ID
+     * @param after Cursor of the last review already shown
+     */
+    public static void reviews(Long id, String after) {
+        renderJSON(Post.findByRestaurant(id, after, REVIEWS_PAGE_SIZE));
     }
 
     /**
@@ -82,7 +94,7 @@ public class RestaurantProfile extends Controller {
 	Restaurant restaurant = Restaurant.findById(id);
 
         //Check whether the user has permission to edit this restaurant
-        user = User.find("byEmail", Security.connected()).first();	//We already made sure they're connected, so this will not return null
+        user = ConnectedUser.get();	//We already made sure they're connected, so this will not return null
 
         //If restaurants have owners, their profile can only be edited by the owner. Otherwise, anyone can edit them, like a wiki.
         if(restaurant.owner == null || restaurant.owner == user || user.isAdmin)
@@ -116,6 +128,7 @@ public class RestaurantProfile extends Controller {
 	//Create a new restaurant if we weren't editing an existing one
 	if(id == null) {
 		restaurant = new Restaurant(name, street1, street2, city, state, zipcode, phone, website, cuisine, cost, content, pic);
+		restaurant.profilepicHash = BlobStore.intern(pic);
 	}
 	//Otherwise, update the restaurant that already exists
 	else {
@@ -131,16 +144,25 @@ public class RestaurantProfile extends Controller {
 		restaurant.cuisine = cuisine;
 		restaurant.cost = cost;
 		restaurant.aboutUs = content;
-		restaurant.profilepic = pic;
+
+		//Keep the current picture unless a different one was uploaded. An unchanged upload is left for AttachmentCollection
+		String hash = BlobStore.intern(pic);
+		if(hash != null && !hash.equals(restaurant.profilepicHash)) {
+			restaurant.profilepic = pic;
+			restaurant.profilepicHash = hash;
+		}
 	}
         // Validate
         validation.valid(restaurant);
+        if(Restaurant.isTaken(restaurant))
+            validation.addError("name", "There is already a restaurant with this name in this city.");
         if(validation.hasErrors()) {
             render("@editform", restaurant);
         }
 
 	//If everything went well, save and display the restaurant's profile page
 	restaurant.save();
+	ImageVariants.generate(restaurant.profilepic, restaurant.profilepicHash);
 	if(id == null) {
 		id = restaurant.id;
 	}
@@ -149,23 +171,26 @@ public class RestaurantProfile extends Controller {
 
     /**
      * Lists all restaurants with a given tag.
-     * @param tag The tag to search for
+     * @param tag    The tag to search for
+     * @param before Cursor of the page to display, or null for the first page
      */
-    public static void listTagged(String tag) {
-        List<Post> posts = Post.findTaggedWith(tag);
-        render(tag, posts);
+    public static void listTagged(String tag, String before) {
+        KeysetPage<Post> page = Post.findTaggedWith(new String[] {tag}, null, null, before, TagIndex.PAGE_SIZE);
+        List<Post> posts = page.items;
+        int count = TagIndex.count(tag);
+        render(tag, posts, count, page);
     }
 
     /**
      * Called by templates to deliver the profile picture associated with a restaurant
-     * @param id The restaurant's ID
+     * @param id   The restaurant's ID
+     * @param size "thumb", "card" or "full". Defaults to "full"
+     * @param v    Hash of the picture, if the URL is versioned
      */
-    public static void profilePic(Long id) {
+    public static void profilePic(Long id, String size, String v) {
 	Restaurant restaurant = Restaurant.findById(id);
 	notFoundIfNull(restaurant);
-	response.setContentTypeIfNotSet(restaurant.profilepic.type());
-	if(restaurant.profilepic.get() != null){
-		renderBinary(restaurant.profilepic.get());
-	}
+
+	ImageServing.serve(restaurant.profilepic, restaurant.profilepicHash, size, v);
    }
 }
@@ -35,30 +35,33 @@ public class Reviews extends Controller {
     }
 
     /**
-     * Index page for all reviews. Will list the most recent posts.
+     * Index page for all reviews. Will list the hottest posts, or the most recent
+     * ones if none were written lately.
      */
     public static void index() {
-      Post frontPost = Post.find("order by postedAt desc").first();
-      List<Post> olderPosts = Post.find("order by postedAt desc").from(1).fetch(10);
+      List<Post> hotPosts = HotPosts.top(Application.HOT_SIZE + 1);
+      if(hotPosts.isEmpty()) {
+        Post frontPost = Post.find("order by postedAt desc").first();
+        List<Post> olderPosts = Post.find("order by postedAt desc").from(1).fetch(10);
+        render(frontPost, olderPosts);
+      }
+
+      Post frontPost = hotPosts.get(0);
+      List<Post> olderPosts = hotPosts.subList(1, hotPosts.size());
       render(frontPost, olderPosts);
     }
 
 
     /**
-     * Gets the featured review of the day.
+     * Gets the featured review of the day, which is picked once a day by the
+     * FeaturedReviewSelection job.
      */
     public static Post getROTD() {
-        Calendar cal = Calendar.getInstance();
-
-        //Get the 7 best reviews and use modulo to change between them each day of the week
-        try{
-            List<Post> topReviews = Post.find("select p from Post p order by p.rating desc").fetch(7);
-            Post reviewOfTheDay = topReviews.get(cal.get(Calendar.DAY_OF_WEEK) % topReviews.size()); //Use top reviews.size instead of 7 because there may be less than 7 reviews found
-            return reviewOfTheDay;
-        }
-        catch(ArithmeticException e){ // 0 reviews returned
+        Long id = FeaturedReviews.global();
+        if(id == null) // 0 reviews
             return null;
-        }
+
+        return Post.findById(id);
     }
 
     /**
@@ -67,8 +70,7 @@ public class Reviews extends Controller {
      */
     public static void show(Long id) {
         Post post = Post.findById(id);
-        String randomID = Codec.UUID(); //Used to generate a captcha, in case the user wants to leave a comment
-        render(post, randomID);
+        render(post);
     }
 
     /**
@@ -78,7 +80,7 @@ public class Reviews extends Controller {
      * @param author    The name the user left the comment by, if they're not logged in
      * @param content   The comment
      * @param code      Captcha code
-     * @param randomID  Captcha code's randomID
+     * @param randomID  ID of the captcha challenge, as issued by Application.challenge()
      */
     public static void postComment(
         Long postId,
@@ -90,51 +92,42 @@ public class Reviews extends Controller {
         Post post = Post.findById(postId);
 
         //Validate the code
-        validation.equals(code, Cache.get(randomID)).message("Invalid code. Please type it again");
+        validation.isTrue(ChallengeStore.consume(randomID, code)).message("Invalid code. Please type it again");
 
         if(validation.hasErrors()) {
-            render("Reviews/show.html", post, randomID);
+            render("Reviews/show.html", post);
         }
         
         //else
         post.addComment(author, content);
+        TrendTracker.commented(post);
         flash.success("Thanks for posting %s", author);
 
-        Cache.delete(randomID); //Free the randomID from the cache
         show(postId);
     }
 
-    /**
-     * Called by templates to display the captcha image
-     * @param id The captcha's random ID
-     */
-    public static void captcha(String id) {
-        Images.Captcha captcha = Images.captcha();
-        String code = captcha.getText("#E4EAFD");
-        Cache.set(id, code, "30mn");
-        renderBinary(captcha);
-    }
-
     /**
      * Called by templates to display the image associated with a particular review.
-     * @param id 
+     * @param id   
+     * @param size "thumb", "card" or "full". Defaults to "full"
+     * @param v    Hash of the picture, if the URL is versioned
      */
-    public static void postPic(Long id) {
+    public static void postPic(Long id, String size, String v) {
 	Post post = Post.findById(id);
 	notFoundIfNull(post);
-	response.setContentTypeIfNotSet(post.pic.type());
 
-	if(post.pic.get() != null){
-		renderBinary(post.pic.get());
-	}
+	ImageServing.serve(post.pic, post.picHash, size, v);
     }
 
     /**
      * Lists all reviews with a specific tag
-     * @param tag The tag to search for
+     * @param tag    The tag to search for
+     * @param before Cursor of the page to display, or null for the first page
      */
-    public static void listTagged(String tag) {
-        List<Post> posts = Post.findTaggedWith(tag);
-        render(tag, posts);
+    public static void listTagged(String tag, String before) {
+        KeysetPage<Post> page = Post.findTaggedWith(new String[] {tag}, null, null, before, TagIndex.PAGE_SIZE);
+        List<Post> posts = page.items;
+        int count = TagIndex.count(tag);
+        render(tag, posts, count, page);
     }
 }
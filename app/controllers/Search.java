@@ -14,8 +14,6 @@ import play.data.validation.*;
 import play.db.jpa.Blob;
 import play.db.jpa.Model;
 import play.jpa.*;
-import play.modules.paginate.*;
-import play.modules.paginate.ModelPaginator.*;
 
 import java.util.*;
 
@@ -30,7 +28,7 @@ public class Search extends Controller {
     */
     static void setConnectedUser() {
         if(Security.isConnected()) {
-          User user = User.find("byEmail", Security.connected()).first();
+          User user = ConnectedUser.get();
           renderArgs.put("loggedInAs", user);
         }
     }
@@ -60,11 +58,11 @@ public class Search extends Controller {
 
         //else
         if(search_type == BY_CITY) { //If searching by city
-            byCity(input);  //Calls render by itself
+            byCity(input, 1);  //Calls render by itself
         }
 
         else {
-            byRestaurantName(input);    //Calls render by itself
+            byRestaurantName(input, 1);    //Calls render by itself
         }
     }
 
@@ -74,54 +72,102 @@ public class Search extends Controller {
      * Lists all restaurants in a given city
      * This function calls render on its own. This way, it can offer suggestions if there are misspellings.
      * @param city The city name
+     * @param page The page of results to show, starting at 1
      */
-    public static void byCity(String city) {
-        List<Restaurant> restaurants = Restaurant.find("byCity", city).fetch();
-        int results_size = restaurants.size();
-
-        ModelPaginator paginator = new ModelPaginator(Restaurant.class, "city like '%" + city + "%'"); //Inline way of getting name in %like% operator
+    public static void byCity(String city, int page) {
+        List<Long> ids = RestaurantSearchIndex.search(RestaurantSearchIndex.CITY, city);
+        int results_size = ids.size();
+        page = clampPage(page, results_size);
+        int pages = pageCount(results_size);
+        List<Restaurant> restaurants = loadPage(ids, page);
 
         //Check for city misspellings
-        Restaurant misspelled_city_restaurant = Restaurant.find("byCityLike", city.substring(0,3) + '%').first();
-        String misspelled_city = misspelled_city_restaurant != null ? misspelled_city_restaurant.city : null;
+        List<String> suggestions = SpellingSuggester.suggest(RestaurantSearchIndex.CITY, city, 1);
+        String misspelled_city = suggestions.isEmpty() ? null : suggestions.get(0);
 
-        render(city, paginator, results_size, misspelled_city);
+        render(city, restaurants, page, pages, results_size, misspelled_city);
     }
 
     /**
      * Searches for a restaurant by name
      * This function calls render on its own. This way, it can offer suggestions if there are misspellings.
      * @param name The restaurant name
+     * @param page The page of results to show, starting at 1
      */
-    public static void byRestaurantName(String name) {
-        List<Restaurant> restaurants = Restaurant.find("byNameLike", name).fetch();
-        int results_size = restaurants.size();
+    public static void byRestaurantName(String name, int page) {
+        List<Long> ids = RestaurantSearchIndex.search(RestaurantSearchIndex.NAME, name);
+        int results_size = ids.size();
+        page = clampPage(page, results_size);
+        int pages = pageCount(results_size);
+        List<Restaurant> restaurants = loadPage(ids, page);
+
+        //Check for restaurant name misspellings
+        List<String> suggestions = SpellingSuggester.suggest(RestaurantSearchIndex.NAME, name, 1);
+        String misspelled_restaurant_name = suggestions.isEmpty() ? null : suggestions.get(0);
+
+        render(restaurants, page, pages, name, results_size, misspelled_restaurant_name);
+    }
 
-        ModelPaginator paginator = new ModelPaginator(Restaurant.class, "name like '%" + name + "%'"); //Inline way of getting name in like
+    /**
+     * Loads one page of the restaurants found by the search index. The IDs are
+     * sorted by name and paged in memory, so only the restaurants on the page are
+     * queried, however many were found.
+     * @param ids The IDs of the restaurants found
+     * @param page The page to load, starting at 1
+     * @return The restaurants on the page, by name
+     */
+    private static List<Restaurant> loadPage(List<Long> ids, int page) {
+        List<Long> sorted = RestaurantSearchIndex.sortByName(ids);
+        int from = (page - 1) * PAGE_SIZE;
+        List<Long> pageIds = sorted.subList(Math.min(from, sorted.size()), Math.min(from + PAGE_SIZE, sorted.size()));
+
+        List<Restaurant> restaurants = new ArrayList<Restaurant>();
+        if(pageIds.isEmpty())
+            return restaurants;
+
+        Map<Long, Restaurant> loaded = new HashMap<Long, Restaurant>();
+        List<Restaurant> found = Restaurant.find("id in (?1)", pageIds).fetch();
+        for(Restaurant restaurant : found)
+            loaded.put(restaurant.id, restaurant);
+
+        //Keep the order by name, skipping restaurants deleted since the search
+        for(Long id : pageIds) {
+            if(loaded.containsKey(id))
+                restaurants.add(loaded.get(id));
+        }
+        return restaurants;
+    }
 
-        //Check for city misspellings
-        Restaurant misspelled_restaurant = Restaurant.find("byNameLike", name.substring(0,3) + '%').first();
-        String misspelled_restaurant_name = misspelled_restaurant != null ? misspelled_restaurant.name : null;
+    /**
+     * Returns the number of pages of search results, at least 1
+     */
+    private static int pageCount(int results) {
+        return Math.max(1, (results + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
 
-        render(paginator, name, results_size, misspelled_restaurant_name);
+    /**
+     * Brings a page number within the pages of search results
+     */
+    private static int clampPage(int page, int results) {
+        return Math.min(Math.max(page, 1), pageCount(results));
     }
 
     /**
      * Lists restaurants with a similar name to the one typed. Used for the "Did you mean" suggestion on search results.
-     * Todo: Right now, we're only using the MySQL like comparator. We should use a more advanced algorithm to check for typos.
+     * Suggestions come from the in-memory SpellingSuggester, so this never queries the database.
      * @param name The name of the restaurant.
-     * @return 
+     * @return The closest restaurant names, closest first
      */
     public static List<String> findSimilarName(String name) {
-            List<String> restaurantList = new ArrayList();	//List to store similar restaurants found
-            String firstThree = name.substring(0, 3);	//First three characters
-
-            //Get the restaurants that match the first three characters
-            List<String> matchesFirstThree = Restaurant.find("select r.name from Restaurant r where r.name like ?", firstThree + "%").fetch();
-
-            return matchesFirstThree;
+            return SpellingSuggester.suggest(RestaurantSearchIndex.NAME, name, SUGGESTIONS);
     }
     
+    /* Number of restaurants per page of search results */
+    public static final int PAGE_SIZE = 20;
+
+    /* Maximum number of "Did you mean" suggestions */
+    public static int SUGGESTIONS = 5;
+
     public static int BY_CITY = 1;
     public static int BY_NAME = 2;
 }
@@ -37,7 +37,7 @@ public class Security extends Secure.Security {
      */
     static boolean check(String profile) {
         if("admin".equals(profile)) {
-            return User.find("byEmail", connected()).<User>first().isAdmin;
+            return ConnectedUser.get().isAdmin;
         } //else
         
         return false;
@@ -55,7 +55,7 @@ public class Security extends Secure.Security {
      * Should be called when a user is authenticated.
      */
     static void onAuthenticated() {
-        User user = User.find("byEmail", Security.connected()).first();
+        User user = ConnectedUser.get();
         UserProfile.index(user.id);
     }
 
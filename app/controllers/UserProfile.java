@@ -22,15 +22,14 @@ import java.util.*;
 import models.*;
 import controllers.*;
 
-import play.modules.paginate.*;
-import play.modules.paginate.ModelPaginator.*;
-
 import play.vfs.VirtualFile;
 
 
 public class UserProfile extends Controller {
 	/* Number of users to display on followers/following windows */
 	public static final int SN_LIST_SIZE = 10;
+	/* Number of posts, comments or users per page on the full listing pages */
+	public static final int PAGE_SIZE = 20;
 
   @Before
 
@@ -40,7 +39,7 @@ public class UserProfile extends Controller {
    */
   static void setConnectedUser() {
     if(Security.isConnected()) {
-      User user = User.find("byEmail", Security.connected()).first();
+      User user = ConnectedUser.get();
       renderArgs.put("loggedInAs", user);
     }
   }
@@ -68,9 +67,7 @@ public class UserProfile extends Controller {
     }
 
     public static void Signup() {
-            String randomID = Codec.UUID();
-
-            render(randomID);
+            render();
     }
 
     public static void registerUser(
@@ -84,7 +81,7 @@ public class UserProfile extends Controller {
 
 //Make sure password is confirmed and the captcha is right.
             validation.equals(password, confirm).message("The passwords do not match.");
-            validation.equals(captcha, Cache.get(randomID)).message("Please type the code again.");
+            validation.isTrue(ChallengeStore.consume(randomID, captcha)).message("Please type the code again.");
 
             User user = new User(email, password, firstname, lastname);
 
@@ -95,7 +92,6 @@ public class UserProfile extends Controller {
             }
 
             user.save();
-            Cache.delete(randomID);
             session.put("username", user);
 
             flash.success("1");
@@ -141,6 +137,9 @@ public class UserProfile extends Controller {
         //Get the user
         User user = User.findById(id);
 
+        //Remember the old address, so we can forget it once it changes
+        String oldEmail = user.email;
+
         //Set the info to what they entered
         user.firstname = firstname;
         user.lastname = lastname;
@@ -151,6 +150,7 @@ public class UserProfile extends Controller {
         //Only set a profile pic if they uploaded one
         if(profilePic != null) {
                 user.profilePic = profilePic;
+                user.profilePicHash = BlobStore.intern(profilePic);
         }
 
         user.aboutme = aboutme;
@@ -162,6 +162,15 @@ public class UserProfile extends Controller {
         } //else
 
         user.save();
+        ImageVariants.generate(profilePic, user.profilePicHash);
+
+        if(!email.equals(oldEmail)) {
+            ConnectedUser.invalidate(oldEmail);
+
+            //Keep them logged in under their new address
+            if(oldEmail.equals(Security.connected()))
+                session.put("username", email);
+        }
 
         index(id);
     }
@@ -204,6 +213,9 @@ public class UserProfile extends Controller {
         } //else
 
         post.save();
+        Restaurant.reviewChanged(null, 0, post.restaurant, post.rating);
+        Timeline.fanOut(post);
+        TrendTracker.postWritten(post);
         index(id);
     }
 
@@ -217,7 +229,7 @@ public class UserProfile extends Controller {
         //Don't do anything unless the user is trying to edit their own post
         //Todo: add an error page or a 403 response if the user tries to edit another person's post
         if(Security.isConnected()) {
-                User user = User.find("byEmail", Security.connected()).first();
+                User user = ConnectedUser.get();
                 Post post = Post.find("byId", id).first();
 
                 if(post.author == user)
@@ -246,7 +258,7 @@ public class UserProfile extends Controller {
         //Todo: Add an error message or 403 response if the user tries to submit
         //an edit of another user's post
         if(Security.isConnected()) {
-                User user = User.find("byEmail", Security.connected()).first();
+                User user = ConnectedUser.get();
                 Post post = Post.findById(id);
 
              //Make sure there are no errors
@@ -254,6 +266,8 @@ public class UserProfile extends Controller {
                     render("@editPost", post, user);
             }
 
+            Restaurant oldRestaurant = post.restaurant;
+            int oldRating = post.rating;
             post.title = title;
             post.content = message;
 
@@ -265,6 +279,8 @@ public class UserProfile extends Controller {
             
             post.rating = rating;
             post.save();
+            post.indexTags();       //In case the tags were all that changed, which doesn't fire @PostUpdate
+            Restaurant.reviewChanged(oldRestaurant, oldRating, post.restaurant, post.rating);
 
             UserProfile.index(user.id);
         }
@@ -283,42 +299,57 @@ public class UserProfile extends Controller {
         //Todo: Display an error message or a 403 error if the user tries to delete
         //someone else's post
         if(Security.isConnected()) {
-            User user = User.find("byEmail", Security.connected()).first();
+            User user = ConnectedUser.get();
 
-            if(user == post.author)
+            if(user == post.author) {
                     post.delete();
+                    Restaurant.reviewChanged(post.restaurant, post.rating, null, 0);
+            }
 
             UserProfile.index(user.id);
         }
     }
 
+    /* Picture shown for users who didn't upload one */
+    private static final VirtualFile NO_PROFILE_PIC = Play.getVirtualFile("/public/images/no-profile-pic.jpg");
+
      /**
      * Render the user's profile picture
      * Should be called when the user's profile picture needs to be displayed in
      * an <img> tag
-     * @param id The user's ID
+     * @param id   The user's ID
+     * @param size "thumb", "card" or "full". Defaults to "full"
+     * @param v    Hash of the picture, if the URL is versioned
      */
-    public static void profilePic(Long id) {
+    public static void profilePic(Long id, String size, String v) {
         //Find the user and display an error if the user doesn't exist
         User user = User.findById(id);
         notFoundIfNull(user);
 
-        response.setContentTypeIfNotSet(user.profilePic.type());
-
         //Display the user's profile picture if they uploaded one
-        if(user.profilePic.get() != null){
-                renderBinary(user.profilePic.get());
-        }
+        ImageServing.serve(user.profilePic, user.profilePicHash, size, v);
 
         //If they didn't upload one, display the standard default picture
-        else {
-            VirtualFile vf = Play.getVirtualFile("/public/images/no-profile-pic.jpg");
-            response.setContentTypeIfNotSet("image/jpeg");
-            renderBinary(vf.getRealFile());
-        }
+        ImageServing.serveFile(NO_PROFILE_PIC.getRealFile(), "image/jpeg");
     }
 
 
+    /**
+     * Renders a JSON list of the IDs of the newest posts written by the people the
+     * current user is following, newest first
+     *
+     * If the user isn't logged in, it currently just renders zero.
+     *
+     * @param amount    The maximum number of post IDs to return
+     */
+    public static void timeline(int amount) {
+        if(Security.isConnected()) {
+            User user = ConnectedUser.get();
+            renderJSON(Timeline.latest(user.id, amount > 0 ? amount : SN_LIST_SIZE));
+        }
+        renderJSON("0");
+    }
+
     /**
      * Checks whether one user is following another
      * 
@@ -355,7 +386,7 @@ public class UserProfile extends Controller {
         //while not logged in
         if(Security.isConnected()) {
             String response;
-            whoFollowing = User.find("byEmail", Security.connected()).first();
+            whoFollowing = ConnectedUser.get();
             User whoFollowed = User.findById(whoFollowedId);	//Get user we want to follow
 
             boolean result = followerRelations.addFollower(whoFollowing, whoFollowed);
@@ -392,7 +423,7 @@ public class UserProfile extends Controller {
         //Todo Add an error or 403 response if the user tries to access this function
         //while not logged in
         if(Security.isConnected()) {
-            whoFollowing = User.find("byEmail", Security.connected()).first();
+            whoFollowing = ConnectedUser.get();
             User whoFollowed = User.findById(whoFollowedId);	//Get user we want to follow
 
             boolean result = followerRelations.removeFollower(whoFollowing, whoFollowed);
@@ -450,7 +481,8 @@ public class UserProfile extends Controller {
     }
 
     /**
-     * Renders a JSON list of all restaurants with a name similar to the input parameter
+     * Renders a JSON list of the most reviewed restaurants with a word in their name
+     * starting with the input parameter
      * Typically, this used by the jQueryUI Autocomplete feature to assist users
      * in finding restaurants while they're typing them into the Restaurant Name
      * box as they're entering data for a new post
@@ -458,29 +490,8 @@ public class UserProfile extends Controller {
      * @param term What the user has typed so far
      */
     public static void findRestaurants(String term) {
-        //Surround the term with % signs for the MySQL like query
-        term = "%" + term + "%";
-        List<Restaurant> restaurantList = Restaurant.find("select r from Restaurant r where r.name like ?", term).fetch(10);
-
-        List<String> restaurantInfoList = new ArrayList();
-
-        //Form a list with restaurant name, city, and state to help narrow the scope for the user
-        Iterator<Restaurant> li = restaurantList.iterator();
-        while(li.hasNext()) {
-            Restaurant r = li.next();
-            String toAdd = r.name;
-
-            //Only add city and state if they're not null, otherwise autocomplete will show ", null, null"
-            if(r.city != null && r.city.length() > 0) {
-                    toAdd += ", " + r.city;
-                    if(r.state != null && r.state.name != null)
-                            toAdd += ", " + r.state.name;
-            }
-
-            restaurantInfoList.add(toAdd);
-        }
-
-        renderJSON(restaurantInfoList);
+        //Completions come with their city and state already, to help narrow the scope for the user
+        renderJSON(RestaurantCompletions.complete(term, 10));
     }
 
     /**
@@ -496,20 +507,13 @@ public class UserProfile extends Controller {
     private static Restaurant find_or_create_restaurant(String restaurantData, String defaultCity, State defaultState) {
         //Parse data from what the user typed. This allows them to enter, for example, "Per Se New York, NY" all it one line when they enter the restaurant
         Restaurant r = get_restaurant_fields(restaurantData);
-        Restaurant restaurant;
 
-        //Search appropriately, based on what criteria we were able to extract
-        if(r.city != null && r.state != null)
-            restaurant = Restaurant.find("byNameAndCityAndState", r.name, r.city, r.state).first();
-        else if(r.city != null)
-            restaurant = Restaurant.find("byNameAndCity", r.name, r.city).first();
-        else
-            restaurant = Restaurant.find("byName", r.name).first();
+        //Search on whatever criteria we were able to extract. Repeat lookups don't touch the database
+        Restaurant restaurant = Restaurant.findByKey(r.name, r.city, r.state);
 
-        //If no restaurant was found, create a new one
+        //If no restaurant was found, create a new one, unless another request just did
         if(restaurant == null) {
-            restaurant = new Restaurant(r.name, (r.city == null ? defaultCity : r.city), (r.state == null ? defaultState : r.state));
-            restaurant.save();
+            restaurant = Restaurant.findOrCreate(r.name, r.city, r.state, (r.city == null ? defaultCity : r.city), (r.state == null ? defaultState : r.state));
             flash.success("success");	//Must flash success so the user is prompted to enter data for the restaurant
             flash.put("restaurantID", restaurant.id);
         }
@@ -554,54 +558,55 @@ public class UserProfile extends Controller {
     }
 
     /**
-     * Renders a page listing all a user's posts using the paginator for pagination
+     * Renders a page listing all a user's posts, using keyset pagination
      * 
-     * @param id The user's ID
+     * @param id    The user's ID
+     * @param after Cursor of the page to display, or null for the first page
      */
-    public static void posts(Long id) {
+    public static void posts(Long id, String after) {
         User user = User.findById(id);
-        ModelPaginator paginator = new ModelPaginator(Post.class, "author = ?", user).orderBy("postedAt desc");
+        KeysetPage<Post> page = Post.findByAuthor(user, after, PAGE_SIZE);
 
-        render(user, paginator);
+        render(user, page);
     }
 
     /**
-     * Renders a page listsing all a user's comments, using the paginator for pagination
+     * Renders a page listsing all a user's comments, using keyset pagination
      * 
-     * @param id The user's ID
+     * @param id    The user's ID
+     * @param after Cursor of the page to display, or null for the first page
      */
-    public static void comments(Long id) {
+    public static void comments(Long id, String after) {
         User user = User.findById(id);
-        ModelPaginator paginator = new ModelPaginator(Comment.class, "author = ?", user).orderBy("postedAt desc");
+        KeysetPage<Comment> page = Comment.findByAuthor(user, after, PAGE_SIZE);
 
-        render(user, paginator);
+        render(user, page);
     }
 
     /**
-     * Renders a page listing all the people a user is following, using the
-     * paginator for pagination
+     * Renders a page listing all the people a user is following, using keyset
+     * pagination
      * 
-     * @param id The user's ID
+     * @param id    The user's ID
+     * @param after Cursor of the page to display, or null for the first page
      */
-    public static void friends(Long id) {
+    public static void friends(Long id, String after) {
         User user = User.findById(id);
-        List<User> following = followerRelations.listFollowing(user);
-        ValuePaginator paginator = new ValuePaginator(following);
+        KeysetPage<User> page = followerRelations.listFollowing(user, after, PAGE_SIZE);
 
-        render(user, paginator);
+        render(user, page);
     }
 
     /**
-     * Renders a page listing all a user's followers, using the paginator for pagination
+     * Renders a page listing all a user's followers, using keyset pagination
      * 
-     * @param id The user's ID
+     * @param id    The user's ID
+     * @param after Cursor of the page to display, or null for the first page
      */
-    public static void followers(Long id) {
+    public static void followers(Long id, String after) {
         User user = User.findById(id);
-        List<User> followers = followerRelations.listFollowers(user);
-        ValuePaginator paginator = new ValuePaginator(followers);
+        KeysetPage<User> page = followerRelations.listFollowers(user, after, PAGE_SIZE);
 
-        render(user, paginator);
+        render(user, page);
     }
 }
-
@@ -29,7 +29,7 @@ public class Useradmin extends Controller {
      */
     static void setConnectedUser() {
         if(Security.isConnected()) {
-            User user = User.find("byEmail", Security.connected()).first();
+            User user = ConnectedUser.get();
             renderArgs.put("user", user.firstname);
         }
     }
@@ -91,19 +91,24 @@ public class Useradmin extends Controller {
         String tags, Blob pic) {
 
         Post post;
+        Restaurant oldRestaurant = null;
+        int oldRating = 0;
         if(id == null) {
             // Create pPer Seost
-            User author = User.find("byEmail", Security.connected()).first();
+            User author = ConnectedUser.get();
             post = new Post(author, title, restaurant, city, content, pic);
         } else {
             // Retrieve post
             post = Post.findById(id);
+            oldRestaurant = post.restaurant;
+            oldRating = post.rating;
             post.title = title;
             post.content = content;
 						post.restaurant = Restaurant.findOrCreateByName(restaurant, city);
             post.tags.clear();
             post.pic = pic;
         }
+        post.picHash = BlobStore.intern(pic);
 
         post.rating = rating;
 
@@ -132,6 +137,13 @@ public class Useradmin extends Controller {
         }
         // Save
         post.save();
+        post.indexTags();       //The tags may be all that changed, which doesn't fire @PostUpdate
+        ImageVariants.generate(pic, post.picHash);
+        Restaurant.reviewChanged(oldRestaurant, oldRating, post.restaurant, post.rating);
+        if(id == null) {
+            Timeline.fanOut(post);
+            TrendTracker.postWritten(post);
+        }
         index();
     }
 
@@ -142,6 +154,7 @@ public class Useradmin extends Controller {
     public static void deletePost(Long id) {
         Post post = Post.findById(id);
         post.delete();
+        Restaurant.reviewChanged(post.restaurant, post.rating, null, 0);
 
     }
 }
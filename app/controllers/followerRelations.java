@@ -51,29 +51,37 @@ public class followerRelations extends Controller {
         }
 
        //Get the user who's logged in
-       User loggedInAs = User.find("byEmail", Security.connected()).first();
+       User loggedInAs = ConnectedUser.get();
 
         //User can't add a follower unless he's the user following, or an admin
-        if(loggedInAs != follower && !loggedInAs.isAdmin) {
+        if(!loggedInAs.id.equals(follower.id) && !loggedInAs.isAdmin) {
             return false;
         }
 
         //User can't follow himself
-        if(follower == followee)
+        if(follower.id.equals(followee.id))
                 return false;
 
-        followerRelation friendship = followerRelation.find("select f from followerRelation f where f.follower = ?1 and f.followee = ?2", follower, followee).first();
-
         //If there's already a  friendship to begin with, we can't add it again.
-        if(friendship != null) {
+        if(FollowerGraph.isFollowing(follower.id, followee.id)) {
             return false;
         }
 
 
         //If all checks are passed, add the follower relation
-        friendship = new followerRelation(follower, followee);
+        followerRelation friendship = new followerRelation(follower, followee);
         friendship.save();
 
+        //Only once it's committed, so a rolled back follow doesn't stay in the graph
+        final Long followerId = follower.id;
+        final Long followeeId = followee.id;
+        Transactions.afterCommit(new Runnable() {
+            public void run() {
+                FollowerGraph.add(followerId, followeeId);
+                Timeline.invalidate(followerId);     //Their timeline now needs the new followee's posts
+            }
+        });
+
         return true;
     }
 
@@ -103,22 +111,29 @@ public class followerRelations extends Controller {
             return false;
         }
 
-        User loggedInAs = User.find("byEmail", Security.connected()).first();
+        User loggedInAs = ConnectedUser.get();
 
         //User can't add a follower unless he's the user following, or an admin
-        if(loggedInAs != follower && !loggedInAs.isAdmin) {
+        if(!loggedInAs.id.equals(follower.id) && !loggedInAs.isAdmin) {
             return false;
         }
 
-        followerRelation friendship = followerRelation.find("select f from followerRelation f where f. follower = ?1 and f.followee = ?2", follower, followee).first();
-
         //If there was no friendship to begin with, an error occurred.
-        if(friendship == null) {
+        if(!FollowerGraph.isFollowing(follower.id, followee.id)) {
             return false;
         }
 
         //Otherwise, delete it.
-        friendship.delete();
+        followerRelation.delete("follower = ?1 and followee = ?2", follower, followee);
+
+        final Long followerId = follower.id;
+        final Long followeeId = followee.id;
+        Transactions.afterCommit(new Runnable() {
+            public void run() {
+                FollowerGraph.remove(followerId, followeeId);
+                Timeline.invalidate(followerId);
+            }
+        });
         return true;
     }
 
@@ -150,9 +165,10 @@ public class followerRelations extends Controller {
      * @return true if followee is currently being followed by follower, false otherwise.
      */
     public static boolean isFollowing(User follower, User followee) {
-        followerRelation friendship = followerRelation.find("select f from followerRelation f where f.follower = ?1 and f.followee = ?2", follower, followee).first();
+        if(follower == null || followee == null)
+            return false;
 
-        return(friendship != null);
+        return(FollowerGraph.isFollowing(follower.id, followee.id));
     }
 
     /**
@@ -162,10 +178,7 @@ public class followerRelations extends Controller {
      * @return true if followee is currently being followed by follower, false otherwise.
      */
     public static boolean isFollowing(Long followerId, Long followeeId) {
-        User follower = User.findById(followerId);
-        User followee = User.findById(followeeId);
-
-        return(isFollowing(follower, followee));
+        return(FollowerGraph.isFollowing(followerId, followeeId));
     }
 
     /**
@@ -175,9 +188,7 @@ public class followerRelations extends Controller {
      * @return true if followed is being followed by followedBy, false otherwise
      */
     public static boolean isFollowedBy(User followed, User followedBy) {
-        followerRelation friendship = followerRelation.find("select f from followerRelation f where f.follower = ?1 and f.followee = ?2", followedBy, followed).first();
-
-        return(friendship != null);
+        return(isFollowing(followedBy, followed));
     }
 
     /**
@@ -188,10 +199,25 @@ public class followerRelations extends Controller {
      * @return true if followed is being followed by followedBy, false otherwise
      */
     public static boolean isFollowedBy(Long followedId, Long followedById) {
-        User followed = User.findById(followedId);
-        User followedBy = User.findById(followedById);
-        return(isFollowedBy(followed, followedBy));
+        return(FollowerGraph.isFollowing(followedById, followedId));
+    }
 
+    /**
+     * Returns the number of followers a user has
+     * @param followeeId    The ID of the user being followed
+     * @return The number of users following them
+     */
+    public static int countFollowers(Long followeeId) {
+        return(FollowerGraph.followerCount(followeeId));
+    }
+
+    /**
+     * Returns the number of people a user is following
+     * @param followerId    The ID of the user
+     * @return The number of users they are following
+     */
+    public static int countFollowing(Long followerId) {
+        return(FollowerGraph.followingCount(followerId));
     }
 
 
@@ -235,6 +261,58 @@ public class followerRelations extends Controller {
         return(listFollowing(follower, amount));
     }
 
+    /**
+     * Returns one page of the users a user is following, most recently followed
+     * first, using keyset pagination on the followerRelation ID.
+     * @param follower  The user whose following list to return
+     * @param after     The cursor of the page to return, or null for the first page
+     * @param amount    The number of users per page
+     * @return The page of users being followed by follower
+     */
+    public static KeysetPage<User> listFollowing(User follower, String after, int amount) {
+        Long key = KeysetPage.parseId(after);
+        List<followerRelation> relations;
+
+        if(key == null)
+            relations = followerRelation.find("select f from followerRelation f join fetch f.followee where f.follower = ?1 order by f.id desc", follower).fetch(amount + 1);
+        else
+            relations = followerRelation.find("select f from followerRelation f join fetch f.followee where f.follower = ?1 and f.id < ?2 order by f.id desc", follower, key).fetch(amount + 1);
+
+        List<User> followingList = new ArrayList<User>();
+        for(int i = 0; i < relations.size() && i < amount; i++)
+            followingList.add(relations.get(i).followee);
+
+        //We fetched one extra relation to know whether there's another page
+        String next = relations.size() > amount ? String.valueOf(relations.get(amount - 1).id) : null;
+        return new KeysetPage<User>(followingList, next);
+    }
+
+    /**
+     * Returns one page of a user's followers, most recent followers first, using
+     * keyset pagination on the followerRelation ID.
+     * @param followee  The user who is being followed
+     * @param after     The cursor of the page to return, or null for the first page
+     * @param amount    The number of users per page
+     * @return The page of users following the followee
+     */
+    public static KeysetPage<User> listFollowers(User followee, String after, int amount) {
+        Long key = KeysetPage.parseId(after);
+        List<followerRelation> relations;
+
+        if(key == null)
+            relations = followerRelation.find("select f from followerRelation f join fetch f.follower where f.followee = ?1 order by f.id desc", followee).fetch(amount + 1);
+        else
+            relations = followerRelation.find("select f from followerRelation f join fetch f.follower where f.followee = ?1 and f.id < ?2 order by f.id desc", followee, key).fetch(amount + 1);
+
+        List<User> followersList = new ArrayList<User>();
+        for(int i = 0; i < relations.size() && i < amount; i++)
+            followersList.add(relations.get(i).follower);
+
+        //We fetched one extra relation to know whether there's another page
+        String next = relations.size() > amount ? String.valueOf(relations.get(amount - 1).id) : null;
+        return new KeysetPage<User>(followersList, next);
+    }
+
     /**
      * Returns a list of users following a specific user.
      * @param followee  The user who is being followed
@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * AttachmentCollection.java
+ *
+ * Job which periodically deletes the uploaded pictures, and their variants,
+ * which no post, user or restaurant uses any more, so the attachments directory
+ * doesn't grow forever.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import play.*;
+import play.jobs.*;
+
+import models.*;
+
+@Every("6h")
+public class AttachmentCollection extends Job {
+
+    /**
+     * Counts the references to every stored picture and deletes the unused ones
+     */
+    public void doJob() {
+        int deleted = BlobStore.collect(BlobStore.referenceCounts());
+
+        if(deleted > 0)
+            Logger.info("Deleted %d unused attachment files", deleted);
+    }
+}
@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Bootstrap.java
+ *
+ * Job run once when the application starts. Loads the in-memory indexes which
+ * are built from the database, so the first requests don't have to.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import java.util.*;
+
+import play.*;
+import play.jobs.*;
+
+import models.*;
+
+@OnApplicationStart
+public class Bootstrap extends Job {
+
+    /**
+     * Loads all in-memory indexes
+     */
+    public void doJob() {
+        //Give the states and restaurants saved before lookup keys were unique their key, merging duplicates
+        int merged = State.backfillKeys() + Restaurant.backfillKeys();
+
+        //Fill in the review aggregates the first time they're needed, or after restaurants were merged
+        if(merged > 0 || (Restaurant.count("reviewCount > 0") == 0 && Post.count("restaurant is not null") > 0))
+            Restaurant.rebuildAggregates();
+        else
+            Restaurant.refreshMeanRating();
+
+        //Fill in the comment counts the first time, and repair those which drifted while the application was stopped
+        Post.reconcileCommentCounts();
+
+        State.loadKeys();
+        Restaurant.loadKeys();
+        FollowerGraph.load();
+        RestaurantSearchIndex.load();
+        RestaurantCompletions.load();
+        RestaurantLeaderboard.load();
+        TagIndex.load();
+        HotPosts.load();
+        TagCloud.reconcile();
+        LikeCounters.reconcile();
+        FeaturedReviews.select(new Date());
+    }
+}
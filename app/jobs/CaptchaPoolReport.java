@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * CaptchaPoolReport.java
+ *
+ * Job which periodically logs how many captchas were taken from the CaptchaPool
+ * and how often it ran out, so its size and watermark can be tuned, along with
+ * what became of the challenges in the ChallengeStore.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import java.util.*;
+
+import play.*;
+import play.jobs.*;
+
+import models.*;
+
+@Every("10mn")
+public class CaptchaPoolReport extends Job {
+
+    /**
+     * Logs the pool's statistics, as a warning if it ran out, and the
+     * challenges' statistics
+     */
+    public void doJob() {
+        Map<String, Long> stats = CaptchaPool.stats();
+        if(stats.get("taken") == 0)
+            return;
+
+        Map<String, Long> challenges = ChallengeStore.stats();
+        Logger.info("Captcha challenges: %d issued, %d solved, %d failed, %d expired, %d evicted, %d pending",
+            challenges.get("issued"), challenges.get("solved"), challenges.get("failed"),
+            challenges.get("expired"), challenges.get("evicted"), challenges.get("pending"));
+
+        String message = String.format("Captcha pool: %d taken, %d found it empty (%.1f%%), %d available",
+            stats.get("taken"), stats.get("exhausted"), 100.0 * stats.get("exhausted") / stats.get("taken"),
+            stats.get("available"));
+        if(stats.get("exhausted") > 0)
+            Logger.warn("%s", message);
+        else
+            Logger.info("%s", message);
+    }
+}
@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * CaptchaPoolStart.java
+ *
+ * Job run once when the application starts, which starts the background thread
+ * filling the CaptchaPool.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import play.jobs.*;
+
+import models.*;
+
+@OnApplicationStart
+public class CaptchaPoolStart extends Job {
+
+    /**
+     * Starts filling the pool
+     */
+    public void doJob() {
+        CaptchaPool.start();
+    }
+}
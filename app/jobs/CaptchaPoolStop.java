@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * CaptchaPoolStop.java
+ *
+ * Job run when the application stops, including before it's reloaded in dev
+ * mode, which stops the background thread filling the CaptchaPool.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import play.jobs.*;
+
+import models.*;
+
+@OnApplicationStop
+public class CaptchaPoolStop extends Job {
+
+    /**
+     * Stops filling the pool
+     */
+    public void doJob() {
+        CaptchaPool.stop();
+    }
+}
@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * CommentCountReconciliation.java
+ *
+ * Job which periodically recounts the comments of every post, and repairs the
+ * comment counts which drifted, for example because comments were deleted
+ * through the CRUD admin.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import play.*;
+import play.jobs.*;
+
+import models.*;
+
+@Every("1h")
+public class CommentCountReconciliation extends Job {
+
+    /**
+     * Recounts the comments of every post and repairs the counts which differ
+     */
+    public void doJob() {
+        int repaired = Post.reconcileCommentCounts();
+
+        if(repaired > 0)
+            Logger.warn("Repaired %d drifted comment counts", repaired);
+    }
+}
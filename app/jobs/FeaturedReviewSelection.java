@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * FeaturedReviewSelection.java
+ *
+ * Job which picks the reviews of the day for tomorrow, shortly before midnight,
+ * so they're ready to be swapped in as soon as the day starts.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import java.util.*;
+
+import play.*;
+import play.jobs.*;
+
+import models.*;
+
+@On("0 55 23 * * ?")
+public class FeaturedReviewSelection extends Job {
+
+    /**
+     * Computes tomorrow's reviews of the day
+     */
+    public void doJob() {
+        Calendar tomorrow = Calendar.getInstance();
+        tomorrow.add(Calendar.DAY_OF_MONTH, 1);
+
+        FeaturedReviews.select(tomorrow.getTime());
+    }
+}
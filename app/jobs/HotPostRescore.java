@@ -0,0 +1,25 @@
+/*******************************************************************************
+ * HotPostRescore.java
+ *
+ * Job which periodically rescores the hot posts, so posts sink as they get
+ * older even when nobody likes or comments on them, and forgets the posts
+ * which got too old to be ranked.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import play.jobs.*;
+
+import models.*;
+
+@Every("1mn")
+public class HotPostRescore extends Job {
+
+    /**
+     * Rescores every hot post for the current time
+     */
+    public void doJob() {
+        HotPosts.rescore();
+    }
+}
@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * ImageCacheReport.java
+ *
+ * Job which periodically logs the hits, misses and evictions of the ImageCache,
+ * so its size can be tuned.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import java.util.*;
+
+import play.*;
+import play.jobs.*;
+
+import models.*;
+
+@Every("10mn")
+public class ImageCacheReport extends Job {
+
+    /**
+     * Logs the cache's statistics and hit ratio
+     */
+    public void doJob() {
+        Map<String, Long> stats = ImageCache.stats();
+        long requests = stats.get("hits") + stats.get("misses");
+        if(requests == 0)
+            return;
+
+        Logger.info("Image cache: %d hits, %d misses (%.1f%% hit ratio), %d admissions, %d evictions, %d pictures in %d bytes",
+            stats.get("hits"), stats.get("misses"), 100.0 * stats.get("hits") / requests,
+            stats.get("admissions"), stats.get("evictions"), stats.get("entries"), stats.get("bytes"));
+    }
+}
@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * LikeFlush.java
+ *
+ * Job which writes the likes counted in memory by LikeCounters to the posts'
+ * like counts every few seconds, in its own transaction.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import play.jobs.*;
+
+import models.*;
+
+@Every("10s")
+public class LikeFlush extends Job {
+
+    /**
+     * Writes the pending likes
+     */
+    public void doJob() {
+        LikeCounters.flush();
+    }
+}
@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * LikeFlushOnStop.java
+ *
+ * Job run when the application stops, which writes the likes LikeCounters
+ * counted since the last run of the LikeFlush job, so they aren't lost.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import play.jobs.*;
+
+import models.*;
+
+@OnApplicationStop
+public class LikeFlushOnStop extends Job {
+
+    /**
+     * Writes the pending likes
+     */
+    public void doJob() {
+        LikeCounters.flush();
+    }
+}
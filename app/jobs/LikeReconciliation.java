@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * LikeReconciliation.java
+ *
+ * Job which periodically recounts the likes of every post, and repairs the like
+ * counts which drifted from the recorded likes, for example because likes were
+ * still counted in memory when the application was killed.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import play.*;
+import play.jobs.*;
+
+import models.*;
+
+@Every("1h")
+public class LikeReconciliation extends Job {
+
+    /**
+     * Recounts the likes of every post and repairs the counts which differ
+     */
+    public void doJob() {
+        int repaired = LikeCounters.reconcile();
+
+        if(repaired > 0)
+            Logger.warn("Repaired %d drifted like counts", repaired);
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * PictureHashBackfill.java
+ *
+ * Job run in the background when the application starts, which hashes the
+ * pictures uploaded before hashes were stored at upload time, so their URLs
+ * can be versioned too.
+ *
+ * Hashes are written with bulk updates rather than by saving the entities, so
+ * none of the entity callbacks run.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import java.util.*;
+
+import play.*;
+import play.db.jpa.*;
+import play.db.jpa.Blob;
+import play.jobs.*;
+
+import models.*;
+
+@OnApplicationStart(async = true)
+public class PictureHashBackfill extends Job {
+
+    /**
+     * Hashes the pictures of every post, user and restaurant which has none
+     */
+    public void doJob() {
+        int hashed = backfill("Post", "pic", "picHash")
+            + backfill("User", "profilePic", "profilePicHash")
+            + backfill("Restaurant", "profilepic", "profilepicHash");
+
+        if(hashed > 0)
+            Logger.info("Hashed %d pictures uploaded before hashes were stored", hashed);
+    }
+
+    /**
+     * Hashes the pictures of one entity which have no hash yet
+     *
+     * @param entity    The entity's name
+     * @param picture   The name of its picture field
+     * @param hash      The name of its hash field
+     * @return          The number of pictures hashed
+     */
+    private int backfill(String entity, String picture, String hash) {
+        List<Object[]> rows = JPA.em().createQuery(
+            "select e.id, e." + picture + " from " + entity + " e where e." + picture + " is not null and e." + hash + " is null"
+        ).getResultList();
+
+        int hashed = 0;
+        for(Object[] row : rows) {
+            String value = ImageVariants.hash((Blob)row[1]);
+            if(value == null)
+                continue;
+
+            hashed += JPA.em().createQuery("update " + entity + " e set e." + hash + " = :hash where e.id = :id")
+                .setParameter("hash", value)
+                .setParameter("id", row[0])
+                .executeUpdate();
+        }
+        return hashed;
+    }
+}
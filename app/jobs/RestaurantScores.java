@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * RestaurantScores.java
+ *
+ * Job which periodically refreshes the site-wide average rating and rescores
+ * every restaurant with it.
+ *
+ * Each restaurant's score is a Bayesian average, pulled towards the average
+ * rating of the whole site, so that a restaurant with a single 5 star review
+ * doesn't outrank one with hundreds of 4 star reviews. Restaurants are rescored
+ * as their own reviews change, but the site-wide average only drifts slowly, so
+ * it's enough to refresh it once in a while.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import play.*;
+import play.jobs.*;
+
+import models.*;
+
+@Every("1h")
+public class RestaurantScores extends Job {
+
+    /**
+     * Refreshes the average rating and rescores every restaurant
+     */
+    public void doJob() {
+        Restaurant.refreshMeanRating();
+        Restaurant.rescore(null);
+    }
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * TagReconciliation.java
+ *
+ * Job which periodically compares the TagIndex with the database, and then the
+ * tag counts of the TagCloud with the TagIndex, and repairs any which drifted.
+ *
+ ******************************************************************************/
+
+package jobs;
+
+import play.*;
+import play.jobs.*;
+
+import models.*;
+
+@Every("1h")
+public class TagReconciliation extends Job {
+
+    /**
+     * Rereads the tags of every post and repairs the index, then recounts the
+     * posts of every tag and repairs the counts which differ
+     */
+    public void doJob() {
+        int posts = TagIndex.reconcile();
+        if(posts > 0)
+            Logger.warn("Repaired the tags of %d drifted posts in the tag index", posts);
+
+        int counts = TagCloud.reconcile();
+        if(counts > 0)
+            Logger.warn("Repaired %d drifted tag cloud counts", counts);
+    }
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * BlobStore.java
+ *
+ * Content-addressed storage of uploaded pictures.
+ *
+ * Play stores every upload in the attachments directory under a new random
+ * UUID, so the same photo uploaded for ten posts used to be stored ten times.
+ * Instead, the content of every upload is stored once, in the sha256 directory
+ * of the attachments, under its SHA-256 hash. The UUID file Play created is
+ * turned into a hard link to it, so Blob columns keep working unchanged while
+ * identical pictures share the same bytes on disk.
+ *
+ * Files are never deleted when a post, user or restaurant stops using them,
+ * since another one may still be. Instead, the AttachmentCollection job counts
+ * the references to every UUID from Post.pic, User.profilePic and
+ * Restaurant.profilepic, and deletes the UUID files, along with their variants,
+ * which nothing refers to any more. Content files which are left with no link
+ * but their own are then deleted too, and so are the variants ImageVariants
+ * stored next to them. Files younger than attachments.gc.grace are kept, since
+ * their upload may not have been committed yet.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import play.*;
+import play.db.jpa.*;
+import play.db.jpa.Blob;
+import play.libs.Time;
+
+public class BlobStore {
+
+    /* Minimum age of a file before it can be collected */
+    public static final long GRACE = Time.parseDuration(Play.configuration.getProperty("attachments.gc.grace", "1h")) * 1000L;
+
+    /* Held while checking whether a content file exists and linking or deleting it */
+    private static final Object lock = new Object();
+
+    /**
+     * Stores the content of an uploaded picture once, and links the upload to it
+     *
+     * @param upload    The picture as uploaded, which may be null or empty
+     * @return          The SHA-256 hash of the picture, or null if there was none
+     */
+    public static String intern(Blob upload) {
+        String hash = ImageVariants.hash(upload);
+        if(hash == null)
+            return null;
+
+        Path uploaded = upload.getFile().toPath();
+        Path content = contentDirectory().toPath().resolve(hash);
+        try {
+            synchronized(lock) {
+                if(Files.exists(content)) {
+                    //Mark it as used, so it isn't collected before the entity using it is committed
+                    content.toFile().setLastModified(System.currentTimeMillis());
+                    if(!Files.isSameFile(uploaded, content)) {
+                        Files.delete(uploaded);
+                        Files.createLink(uploaded, content);
+                    }
+                }
+                else {
+                    Files.createLink(content, uploaded);
+                }
+            }
+        }
+        catch(IOException e) {
+            //The upload is still there, just not shared
+            Logger.warn(e, "Couldn't deduplicate picture %s", upload.getUUID());
+        }
+        catch(UnsupportedOperationException e) {
+            //The file system has no hard links
+        }
+
+        return hash;
+    }
+
+    /**
+     * Counts the references to every stored UUID
+     *
+     * @return The number of posts, users and restaurants using every UUID
+     */
+    public static Map<String, Integer> referenceCounts() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        count(counts, "select p.pic from Post p where p.pic is not null");
+        count(counts, "select u.profilePic from User u where u.profilePic is not null");
+        count(counts, "select r.profilepic from Restaurant r where r.profilepic is not null");
+        return counts;
+    }
+
+    /**
+     * Deletes every UUID file, and its variants, which isn't referenced, then
+     * every content file which no UUID file links to any more. Only files older
+     * than the grace period are deleted.
+     *
+     * @param counts    The references to every UUID, as returned by referenceCounts()
+     * @return          The number of files deleted
+     */
+    public static int collect(Map<String, Integer> counts) {
+        long cutoff = System.currentTimeMillis() - GRACE;
+        int deleted = 0;
+
+        File[] files = Blob.getStore().listFiles();
+        if(files != null) {
+            for(File file : files) {
+                //Variants and temporary files are named after the upload they were made from
+                String name = file.getName();
+                int dot = name.indexOf('.');
+                if(counts.containsKey(dot < 0 ? name : name.substring(0, dot)))
+                    continue;
+
+                if(file.isFile() && file.lastModified() < cutoff && file.delete())
+                    deleted++;
+            }
+        }
+
+        File[] contents = contentDirectory().listFiles();
+        if(contents != null) {
+            for(File content : contents) {
+                if(content.getName().indexOf('.') >= 0)
+                    continue;
+                synchronized(lock) {
+                    if(content.lastModified() < cutoff && links(content) == 1 && content.delete())
+                        deleted++;
+                }
+            }
+
+            //Variants are named after the content they were made from, and go with it
+            for(File variant : contents) {
+                String name = variant.getName();
+                int dot = name.indexOf('.');
+                if(dot < 0)
+                    continue;
+                synchronized(lock) {
+                    if(!new File(variant.getParentFile(), name.substring(0, dot)).exists() && variant.lastModified() < cutoff && variant.delete())
+                        deleted++;
+                }
+            }
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Returns the number of hard links to a file, or 0 if it can't be told
+     */
+    private static int links(File file) {
+        try {
+            return (Integer)Files.getAttribute(file.toPath(), "unix:nlink");
+        }
+        catch(Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the directory the contents of the pictures are stored in, under
+     * their hash
+     *
+     * @return The directory
+     */
+    public static File contentDirectory() {
+        File directory = new File(Blob.getStore(), "sha256");
+        if(!directory.exists())
+            directory.mkdirs();
+        return directory;
+    }
+
+    private static void count(Map<String, Integer> counts, String query) {
+        List<Blob> blobs = JPA.em().createQuery(query).getResultList();
+        for(Blob blob : blobs) {
+            Integer count = counts.get(blob.getUUID());
+            counts.put(blob.getUUID(), count == null ? 1 : count + 1);
+        }
+    }
+}
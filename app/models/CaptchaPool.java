@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * CaptchaPool.java
+ *
+ * Pool of captchas rendered ahead of time.
+ *
+ * Rendering a captcha is CPU heavy Java2D work. Done on the request thread, a
+ * burst of comment spam can keep every request thread busy drawing captchas.
+ * Instead, a low priority background thread keeps a pool of rendered captchas,
+ * each made of its code and its PNG bytes, and requests just take one.
+ *
+ * The pool holds up to captcha.pool.size captchas. Whenever a captcha is taken
+ * and fewer than captcha.pool.watermark are left, the background thread is woken
+ * up to fill the pool again. Should the pool run out, no captcha is rendered on
+ * the request thread: take() returns none, so the request can ask the browser
+ * to try again shortly, and the exhaustion is counted, so the pool's size can
+ * be tuned. Should rendering fail, for example on a server without fonts, the
+ * background thread waits longer and longer before trying again, rather than
+ * spinning.
+ *
+ * The background thread is started by the CaptchaPoolStart job and stopped by
+ * the CaptchaPoolStop job, so reloading the application in dev mode doesn't
+ * leave old threads behind.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import play.*;
+import play.libs.*;
+
+public class CaptchaPool {
+
+    /* Maximum number of rendered captchas kept */
+    public static final int SIZE = Integer.parseInt(Play.configuration.getProperty("captcha.pool.size", "200"));
+
+    /* Number of captchas left below which the pool is filled again */
+    public static final int WATERMARK = Integer.parseInt(Play.configuration.getProperty("captcha.pool.watermark", "50"));
+
+    /* Color of the captcha's text */
+    private static final String COLOR = "#E4EAFD";
+
+    /* Longest wait between attempts to render, once rendering keeps failing, in milliseconds */
+    private static final long MAX_BACKOFF = 60 * 1000L;
+
+    private static final ArrayBlockingQueue<Rendered> pool = new ArrayBlockingQueue<Rendered>(SIZE);
+    private static final Semaphore refill = new Semaphore(0);
+
+    private static final AtomicLong taken = new AtomicLong();
+    private static final AtomicLong exhausted = new AtomicLong();
+
+    private static Thread refiller;     //Guarded by the class
+
+    /**
+     * Starts the background thread filling the pool, unless it's running
+     */
+    public static synchronized void start() {
+        if(refiller != null)
+            return;
+
+        refiller = new Thread("captcha-pool") {
+            public void run() {
+                long backoff = 0;
+                while(!isInterrupted()) {
+                    try {
+                        if(backoff > 0)
+                            Thread.sleep(backoff);
+                        while(pool.remainingCapacity() > 0)
+                            pool.offer(render());
+                        backoff = 0;
+                        refill.acquire();
+                        refill.drainPermits();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    catch(Exception e) {
+                        backoff = Math.min(MAX_BACKOFF, Math.max(1000, backoff * 2));
+                        Logger.warn(e, "Couldn't render a captcha for the pool, trying again in %d seconds", backoff / 1000);
+                    }
+                }
+            }
+        };
+        refiller.setDaemon(true);
+        refiller.setPriority(Thread.MIN_PRIORITY);
+        refiller.start();
+    }
+
+    /**
+     * Stops the background thread filling the pool
+     */
+    public static synchronized void stop() {
+        if(refiller != null)
+            refiller.interrupt();
+        refiller = null;
+    }
+
+    /**
+     * Takes a rendered captcha out of the pool. Never renders one on the calling
+     * thread.
+     *
+     * @return The captcha, or null if the pool is empty
+     */
+    public static Rendered take() {
+        taken.incrementAndGet();
+
+        Rendered captcha = pool.poll();
+        if(pool.size() < WATERMARK)
+            refill.release();
+
+        if(captcha == null)
+            exhausted.incrementAndGet();
+        return captcha;
+    }
+
+    /**
+     * Returns the pool's statistics
+     *
+     * @return A map with the number of captchas "taken", the number of times the
+     *         pool was "exhausted" and the number "available"
+     */
+    public static Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put("taken", taken.get());
+        stats.put("exhausted", exhausted.get());
+        stats.put("available", (long)pool.size());
+        return stats;
+    }
+
+    /**
+     * Renders a new captcha
+     */
+    private static Rendered render() {
+        Images.Captcha captcha = Images.captcha();
+        String code = captcha.getText(COLOR);
+
+        //The captcha draws itself as it's read
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            for(int read = captcha.read(buffer); read != -1; read = captcha.read(buffer))
+                png.write(buffer, 0, read);
+        }
+        catch(IOException e) {
+            throw new RuntimeException("Couldn't render a captcha", e);
+        }
+
+        return new Rendered(code, png.toByteArray());
+    }
+
+    /**
+     * A rendered captcha
+     */
+    public static class Rendered {
+        public final String code;       //The text the user must type
+        public final byte[] png;        //The image
+
+        Rendered(String code, byte[] png) {
+            this.code = code;
+            this.png = png;
+        }
+    }
+}
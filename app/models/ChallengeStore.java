@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * ChallengeStore.java
+ *
+ * The captcha challenges waiting to be answered.
+ *
+ * Pages with a comment or sign up form used to make up a captcha ID on every
+ * view, and store its code in the cache for 30 minutes as soon as the image was
+ * requested, so crawlers and readers who never comment filled the cache with
+ * unused codes. Challenges are now only issued when a form is opened, and kept
+ * here rather than in the shared cache.
+ *
+ * A challenge can be answered once: consuming it removes it, whether the answer
+ * was right or not. At most captcha.challenges.size challenges are kept; when
+ * there are more, the ones closest to expiring are dropped first. Challenges
+ * expire captcha.challenges.ttl after they were issued.
+ *
+ * Expiry uses a timer wheel: a ring of slots, each covering a short span of
+ * time, holding the challenges expiring during it. As time goes by, the slots
+ * which have gone past are emptied, so expiring a challenge is O(1) and no
+ * challenge is ever scanned twice. A challenge may expire up to one slot's span
+ * early, which is a small fraction of its lifetime.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+
+import play.*;
+import play.libs.*;
+
+public class ChallengeStore {
+
+    /* Maximum number of challenges kept */
+    public static final int CAPACITY = Integer.parseInt(Play.configuration.getProperty("captcha.challenges.size", "10000"));
+
+    /* Time a challenge can be answered for, in milliseconds */
+    public static final long TTL = Time.parseDuration(Play.configuration.getProperty("captcha.challenges.ttl", "30mn")) * 1000L;
+
+    /* Number of slots a challenge's lifetime is spread over */
+    private static final int SLOTS = 60;
+
+    /* Span of time covered by each slot, in milliseconds */
+    private static final long TICK = Math.max(1, TTL / SLOTS);
+
+    //One more slot than a lifetime spans, so new challenges never land in the slot being emptied
+    private static final List<LinkedHashSet<String>> wheel = new ArrayList<LinkedHashSet<String>>();
+    private static final Map<String, Challenge> challenges = new HashMap<String, Challenge>();
+    private static long tick = System.currentTimeMillis() / TICK;   //Last tick expired, guarded by challenges
+
+    private static long issued;
+    private static long solved;
+    private static long failed;
+    private static long expired;
+    private static long evicted;
+
+    static {
+        for(int i = 0; i <= SLOTS; i++)
+            wheel.add(new LinkedHashSet<String>());
+    }
+
+    /**
+     * Issues a new challenge
+     *
+     * @param code  The code the user must type
+     * @return      The challenge's ID
+     */
+    public static String issue(String code) {
+        String id = Codec.UUID();
+        long now = System.currentTimeMillis();
+
+        synchronized(challenges) {
+            expire(now);
+            while(challenges.size() >= CAPACITY)
+                evictOldest();
+
+            Challenge challenge = new Challenge(code, (now + TTL) / TICK);
+            challenges.put(id, challenge);
+            slot(challenge.expires).add(id);
+            issued++;
+        }
+        return id;
+    }
+
+    /**
+     * Answers a challenge. The challenge is removed, so it can't be answered again.
+     *
+     * @param id    The challenge's ID, which may be null
+     * @param code  The code the user typed, which may be null
+     * @return      true if the challenge exists and the code is right
+     */
+    public static boolean consume(String id, String code) {
+        if(id == null)
+            return false;
+
+        synchronized(challenges) {
+            expire(System.currentTimeMillis());
+
+            Challenge challenge = challenges.remove(id);
+            if(challenge == null)
+                return false;
+            slot(challenge.expires).remove(id);
+
+            boolean right = challenge.code.equals(code);
+            if(right)
+                solved++;
+            else
+                failed++;
+            return right;
+        }
+    }
+
+    /**
+     * Returns the store's statistics
+     *
+     * @return A map with the number of challenges "issued", "solved", "failed",
+     *         "expired" and "evicted", and the number still "pending"
+     */
+    public static Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        synchronized(challenges) {
+            stats.put("issued", issued);
+            stats.put("solved", solved);
+            stats.put("failed", failed);
+            stats.put("expired", expired);
+            stats.put("evicted", evicted);
+            stats.put("pending", (long)challenges.size());
+        }
+        return stats;
+    }
+
+    /**
+     * Empties the slots which time has gone past. Must be called holding the
+     * challenges' lock.
+     */
+    private static void expire(long now) {
+        long current = now / TICK;
+
+        //Past a whole turn of the wheel, every slot has expired
+        for(long t = Math.max(tick + 1, current - SLOTS); t <= current; t++) {
+            LinkedHashSet<String> slot = slot(t);
+            for(String id : slot)
+                challenges.remove(id);
+            expired += slot.size();
+            slot.clear();
+        }
+        tick = Math.max(tick, current);
+    }
+
+    /**
+     * Drops the challenge closest to expiring. Must be called holding the
+     * challenges' lock.
+     */
+    private static void evictOldest() {
+        for(long t = tick + 1; t <= tick + SLOTS + 1; t++) {
+            Iterator<String> ids = slot(t).iterator();
+            if(ids.hasNext()) {
+                challenges.remove(ids.next());
+                ids.remove();
+                evicted++;
+                return;
+            }
+        }
+    }
+
+    private static LinkedHashSet<String> slot(long tick) {
+        return wheel.get((int)(tick % wheel.size()));
+    }
+
+    /**
+     * A challenge waiting to be answered
+     */
+    private static class Challenge {
+        final String code;      //The code the user must type
+        final long expires;     //The tick it expires at
+
+        Challenge(String code, long expires) {
+            this.code = code;
+            this.expires = expires;
+        }
+    }
+}
@@ -17,6 +17,9 @@ import play.db.jpa.*;
 import play.data.validation.*;
  
 @Entity
+@org.hibernate.annotations.Table(appliesTo = "Comment", indexes = {
+    @org.hibernate.annotations.Index(name = "comment_author_posted", columnNames = {"author_id", "postedAt", "id"})
+})
 public class Comment extends Model {
  
     public String guest_name;   //Used if the author leaves a comment as a guest
@@ -63,6 +66,37 @@ public class Comment extends Model {
         this.postedAt = new Date();
     }
 
+    /**
+     * Returns one page of a user's comments, newest first, using keyset pagination.
+     * Each page costs one range scan of the (author, postedAt, id) index, no matter
+     * how deep it is.
+     *
+     * @param author    The user who left the comments
+     * @param after     The cursor of the page to return, or null for the first page
+     * @param size      The number of comments per page
+     * @return          The page of comments
+     */
+    public static KeysetPage<Comment> findByAuthor(User author, String after, int size) {
+        long[] key = KeysetPage.parseTimeAndId(after);
+        List<Comment> comments;
+
+        if(key == null)
+            comments = Comment.find("author = ?1 order by postedAt desc, id desc", author).fetch(size + 1);
+        else
+            comments = Comment.find("author = ?1 and (postedAt < ?2 or (postedAt = ?2 and id < ?3)) order by postedAt desc, id desc",
+                author, new Date(key[0]), key[1]).fetch(size + 1);
+
+        //We fetched one extra comment to know whether there's another page
+        String next = null;
+        if(comments.size() > size) {
+            comments = new ArrayList<Comment>(comments.subList(0, size));
+            Comment last = comments.get(size - 1);
+            next = KeysetPage.cursor(last.postedAt, last.id);
+        }
+
+        return new KeysetPage<Comment>(comments, next);
+    }
+
     /**
      * Converts the text of the comment to a length of 53 characters or less.
      * Used for displaying comment snippets, for example, on a list of all posts
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * FeaturedReviews.java
+ *
+ * The reviews of the day: one featured review for the whole site, and one for
+ * every restaurant with reviews.
+ *
+ * Each review of the day is picked among the 7 best rated reviews, using the day
+ * of the week, so the featured review changes every day. Rather than running
+ * that query on every page view, the whole selection is computed once a day by
+ * the FeaturedReviewSelection job, and pages only look up a precomputed ID.
+ *
+ * Restaurants are processed in chunks, so no query has to list every restaurant.
+ * The chunks run one after the other in the selecting job: running them as jobs
+ * of their own would have the selecting job wait on the same small job pool it
+ * holds a thread of, which deadlocks when the pool is busy. The result is stored
+ * as two parallel arrays of restaurant IDs, sorted, and post IDs, which are
+ * searched with a binary search and take a fraction of the memory of a map.
+ *
+ * The selection for the next day is computed shortly before midnight and
+ * swapped in on the first lookup of the day. The selection for today is
+ * computed at startup by the Bootstrap job, so the first page views don't pay
+ * for it. Should a day start with no selection for it, the previous one keeps
+ * being served while the new one is computed in the background. A restaurant
+ * which had no reviews when the selection was computed gets the first review
+ * written about it since as its review of the day: Post tells the selections
+ * about every review once it's committed, so lookups never run a query, even
+ * for the many restaurants without any review.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import play.*;
+import play.jobs.*;
+
+public class FeaturedReviews {
+
+    /* Number of best rated reviews the review of the day is picked among */
+    public static final int CANDIDATES = 7;
+
+    /* Number of restaurants processed by each query */
+    public static final int CHUNK_SIZE = Integer.parseInt(Play.configuration.getProperty("featured.chunk.size", "500"));
+
+    private static volatile Selection current;
+    private static volatile Selection next;
+    private static final AtomicBoolean selecting = new AtomicBoolean();
+
+    /**
+     * Returns the ID of the site's review of the day
+     *
+     * @return The ID of the post, or null if there are no reviews
+     */
+    public static Long global() {
+        Selection selection = today();
+        return selection == null ? null : selection.global;
+    }
+
+    /**
+     * Returns the ID of a restaurant's review of the day
+     *
+     * @param restaurantId  The ID of the restaurant
+     * @return              The ID of the post, or null if the restaurant has no reviews
+     */
+    public static Long forRestaurant(Long restaurantId) {
+        Selection selection = today();
+        if(selection == null || restaurantId == null)
+            return null;
+
+        int index = Arrays.binarySearch(selection.restaurants, restaurantId);
+        if(index >= 0)
+            return selection.posts[index];
+
+        //Reviewed since the selection was computed, or not reviewed at all
+        return selection.late.get(restaurantId);
+    }
+
+    /**
+     * Must be called whenever a post is written, edited or deleted, once it's
+     * committed. A restaurant which had no reviews when the selections were
+     * computed gets the review as its review of the day, and a review picked
+     * that way stops being served for a restaurant it's no longer about.
+     *
+     * @param restaurantId  The ID of the restaurant the post is now about, or
+     *                      null if it's about none or was deleted
+     * @param postId        The ID of the post
+     */
+    public static void reviewed(Long restaurantId, Long postId) {
+        for(Selection selection : new Selection[] {current, next}) {
+            if(selection == null)
+                continue;
+
+            //Only holds the restaurants reviewed since the selection was computed, so it's small
+            for(Map.Entry<Long, Long> picked : selection.late.entrySet()) {
+                if(picked.getValue().equals(postId) && !picked.getKey().equals(restaurantId))
+                    selection.late.remove(picked.getKey(), postId);
+            }
+            if(restaurantId != null && Arrays.binarySearch(selection.restaurants, restaurantId) < 0)
+                selection.late.putIfAbsent(restaurantId, postId);
+        }
+    }
+
+    /**
+     * Computes the reviews of the day for a day, and stores them to be served on
+     * that day
+     *
+     * @param day   Any time during the day
+     */
+    public static void select(Date day) {
+        Selection selection = compute(day);
+
+        if(selection.day == dayKey(new Date()))
+            current = selection;
+        else
+            next = selection;
+    }
+
+    /**
+     * Returns the selection for today, swapping in the one computed ahead of time
+     * if the day just started
+     */
+    private static Selection today() {
+        int today = dayKey(new Date());
+
+        Selection selection = current;
+        if(selection == null || selection.day != today) {
+            Selection upcoming = next;
+            if(upcoming != null && upcoming.day == today) {
+                current = upcoming;
+                selection = upcoming;
+            }
+            else if(selecting.compareAndSet(false, true)) {
+                //No selection for today yet, so keep serving the old one while it's computed
+                new Job() {
+                    public void doJob() {
+                        try {
+                            select(new Date());
+                        }
+                        finally {
+                            selecting.set(false);
+                        }
+                    }
+                }.now();
+            }
+        }
+
+        return selection;
+    }
+
+    /**
+     * Computes the reviews of the day, splitting the restaurants into chunks
+     */
+    private static Selection compute(Date day) {
+        int dayOfWeek = dayOfWeek(day);
+
+        List<Long> best = Post.find("select p.id from Post p order by p.rating desc, p.id").fetch(CANDIDATES);
+        Long global = best.isEmpty() ? null : best.get(dayOfWeek % best.size());
+
+        List<Long> restaurantIds = Post.find("select distinct p.restaurant.id from Post p where p.restaurant is not null order by p.restaurant.id").fetch();
+
+        //Chunks cover increasing restaurant IDs, so appending them keeps the IDs sorted
+        long[] restaurants = new long[restaurantIds.size()];
+        long[] posts = new long[restaurantIds.size()];
+        int size = 0;
+        for(int start = 0; start < restaurantIds.size(); start += CHUNK_SIZE) {
+            long[][] result = computeChunk(restaurantIds.subList(start, Math.min(start + CHUNK_SIZE, restaurantIds.size())), dayOfWeek);
+            System.arraycopy(result[0], 0, restaurants, size, result[0].length);
+            System.arraycopy(result[1], 0, posts, size, result[1].length);
+            size += result[0].length;
+        }
+
+        return new Selection(dayKey(day), global, Arrays.copyOf(restaurants, size), Arrays.copyOf(posts, size));
+    }
+
+    /**
+     * Picks the review of the day of every restaurant in a chunk
+     *
+     * @param restaurantIds The IDs of the restaurants, in increasing order
+     * @param dayOfWeek     The day of the week of the day to pick reviews for
+     * @return              The restaurant IDs and the IDs of their reviews of the day
+     */
+    private static long[][] computeChunk(List<Long> restaurantIds, int dayOfWeek) {
+        List<Object[]> rows = Post.find(
+            "select p.restaurant.id, p.id from Post p where p.restaurant.id in (?1) order by p.restaurant.id, p.rating desc, p.id", restaurantIds
+        ).fetch();
+
+        long[] restaurants = new long[restaurantIds.size()];
+        long[] posts = new long[restaurantIds.size()];
+        int size = 0;
+
+        List<Long> best = new ArrayList<Long>();
+        for(int i = 0; i < rows.size(); i++) {
+            Long restaurantId = (Long)rows.get(i)[0];
+            if(best.size() < CANDIDATES)
+                best.add((Long)rows.get(i)[1]);
+
+            //Last review of this restaurant
+            if(i == rows.size() - 1 || !restaurantId.equals(rows.get(i + 1)[0])) {
+                restaurants[size] = restaurantId;
+                posts[size] = best.get(dayOfWeek % best.size());
+                size++;
+                best.clear();
+            }
+        }
+
+        return new long[][] {Arrays.copyOf(restaurants, size), Arrays.copyOf(posts, size)};
+    }
+
+    /**
+     * Returns the day of the week a date falls on, which picks among the
+     * candidates
+     */
+    private static int dayOfWeek(Date date) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(date);
+        return cal.get(Calendar.DAY_OF_WEEK);
+    }
+
+    /**
+     * Returns a number identifying the day a date falls on, such as 20240131
+     */
+    private static int dayKey(Date date) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(date);
+        return cal.get(Calendar.YEAR) * 10000 + (cal.get(Calendar.MONTH) + 1) * 100 + cal.get(Calendar.DAY_OF_MONTH);
+    }
+
+    /**
+     * The reviews of the day of one day
+     */
+    private static class Selection {
+        final int day;                  //The day, as returned by dayKey()
+        final Long global;              //The site's review of the day, null if there are no reviews
+        final long[] restaurants;       //IDs of the restaurants with reviews, sorted
+        final long[] posts;             //posts[i] is the review of the day of restaurants[i]
+
+        //Reviews of the day of the restaurants reviewed since, picked as reviews are written
+        final ConcurrentHashMap<Long, Long> late = new ConcurrentHashMap<Long, Long>();
+
+        Selection(int day, Long global, long[] restaurants, long[] posts) {
+            this.day = day;
+            this.global = global;
+            this.restaurants = restaurants;
+            this.posts = posts;
+        }
+    }
+}
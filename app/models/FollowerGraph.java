@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * FollowerGraph.java
+ *
+ * In-memory index of the follower graph stored in the followerRelation table.
+ *
+ * For every user ID, the index keeps a sorted array of the IDs of their followers
+ * and a sorted array of the IDs of the people they are following. Checking
+ * whether one user follows another is a binary search, and counting followers is
+ * an array length, so neither has to touch the database.
+ *
+ * The arrays are never modified once they are in the index. Adding or removing a
+ * follow builds a new array and swaps it in, so readers never need to lock.
+ * Writers are serialized, since follows change rarely compared to how often they
+ * are read.
+ *
+ * The index is loaded from the database at startup by the Bootstrap job, and
+ * followerRelations keeps it up to date when follows are added or removed.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FollowerGraph {
+
+    private static final long[] NONE = new long[0];
+
+    private static final ConcurrentHashMap<Long, long[]> followers = new ConcurrentHashMap<Long, long[]>();
+    private static final ConcurrentHashMap<Long, long[]> following = new ConcurrentHashMap<Long, long[]>();
+
+    /**
+     * (Re)loads the whole index from the followerRelation table
+     */
+    public static synchronized void load() {
+        List<Object[]> rows = followerRelation.find("select f.follower.id, f.followee.id from followerRelation f").fetch();
+
+        Map<Long, List<Long>> followersLists = new HashMap<Long, List<Long>>();
+        Map<Long, List<Long>> followingLists = new HashMap<Long, List<Long>>();
+        for(Object[] row : rows) {
+            Long followerId = (Long)row[0];
+            Long followeeId = (Long)row[1];
+            append(followingLists, followerId, followeeId);
+            append(followersLists, followeeId, followerId);
+        }
+
+        followers.clear();
+        following.clear();
+        fill(followers, followersLists);
+        fill(following, followingLists);
+    }
+
+    /**
+     * Checks whether one user is following another
+     *
+     * @param followerId    The ID of the person supposedly following another
+     * @param followeeId    The ID of the person being followed
+     * @return              true if followerId is following followeeId, false otherwise
+     */
+    public static boolean isFollowing(Long followerId, Long followeeId) {
+        if(followerId == null || followeeId == null)
+            return false;
+
+        return Arrays.binarySearch(followingOf(followerId), followeeId) >= 0;
+    }
+
+    /**
+     * Returns the IDs of a user's followers, sorted ascending.
+     * The array is shared with the index, so it must not be modified.
+     *
+     * @param followeeId    The ID of the user being followed
+     * @return              The IDs of their followers
+     */
+    public static long[] followersOf(Long followeeId) {
+        long[] ids = followers.get(followeeId);
+        return ids == null ? NONE : ids;
+    }
+
+    /**
+     * Returns the IDs of the people a user is following, sorted ascending.
+     * The array is shared with the index, so it must not be modified.
+     *
+     * @param followerId    The ID of the user following others
+     * @return              The IDs of the people they're following
+     */
+    public static long[] followingOf(Long followerId) {
+        long[] ids = following.get(followerId);
+        return ids == null ? NONE : ids;
+    }
+
+    /**
+     * Returns the number of followers a user has
+     *
+     * @param followeeId    The ID of the user
+     * @return              Their number of followers
+     */
+    public static int followerCount(Long followeeId) {
+        return followersOf(followeeId).length;
+    }
+
+    /**
+     * Returns the number of people a user is following
+     *
+     * @param followerId    The ID of the user
+     * @return              The number of people they're following
+     */
+    public static int followingCount(Long followerId) {
+        return followingOf(followerId).length;
+    }
+
+    /**
+     * Records that one user started following another.
+     * Should be called after the followerRelation has been saved.
+     *
+     * @param followerId    The ID of the follower
+     * @param followeeId    The ID of the user being followed
+     */
+    public static synchronized void add(Long followerId, Long followeeId) {
+        following.put(followerId, insert(followingOf(followerId), followeeId));
+        followers.put(followeeId, insert(followersOf(followeeId), followerId));
+    }
+
+    /**
+     * Records that one user stopped following another.
+     * Should be called after the followerRelation has been deleted.
+     *
+     * @param followerId    The ID of the former follower
+     * @param followeeId    The ID of the user no longer being followed
+     */
+    public static synchronized void remove(Long followerId, Long followeeId) {
+        following.put(followerId, delete(followingOf(followerId), followeeId));
+        followers.put(followeeId, delete(followersOf(followeeId), followerId));
+    }
+
+    /**
+     * Returns a copy of a sorted array with a value added, or the same array if it
+     * was already there
+     */
+    private static long[] insert(long[] ids, long id) {
+        int index = Arrays.binarySearch(ids, id);
+        if(index >= 0)
+            return ids;
+
+        index = -index - 1;
+        long[] result = new long[ids.length + 1];
+        System.arraycopy(ids, 0, result, 0, index);
+        result[index] = id;
+        System.arraycopy(ids, index, result, index + 1, ids.length - index);
+        return result;
+    }
+
+    /**
+     * Returns a copy of a sorted array with a value removed, or the same array if
+     * it wasn't there
+     */
+    private static long[] delete(long[] ids, long id) {
+        int index = Arrays.binarySearch(ids, id);
+        if(index < 0)
+            return ids;
+
+        long[] result = new long[ids.length - 1];
+        System.arraycopy(ids, 0, result, 0, index);
+        System.arraycopy(ids, index + 1, result, index, ids.length - index - 1);
+        return result;
+    }
+
+    private static void append(Map<Long, List<Long>> lists, Long key, Long value) {
+        List<Long> list = lists.get(key);
+        if(list == null) {
+            list = new ArrayList<Long>();
+            lists.put(key, list);
+        }
+        list.add(value);
+    }
+
+    private static void fill(ConcurrentHashMap<Long, long[]> index, Map<Long, List<Long>> lists) {
+        for(Map.Entry<Long, List<Long>> entry : lists.entrySet()) {
+            List<Long> list = entry.getValue();
+            long[] ids = new long[list.size()];
+            for(int i = 0; i < ids.length; i++)
+                ids[i] = list.get(i);
+            Arrays.sort(ids);
+            index.put(entry.getKey(), ids);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * HotPosts.java
+ *
+ * In-memory ranking of the hottest posts: those getting the most likes and
+ * comments, and the best ratings, for their age.
+ *
+ * Like Hacker News, a post's score is its points divided by a power of its age,
+ * so new activity can lift any post but every post eventually sinks:
+ *
+ *      score = points / (hours since posted + 2) ^ GRAVITY
+ *
+ * where points count 1 for the post itself, plus its likes, comments and rating
+ * weighed by the constants below. Computing that with SQL would mean scoring
+ * every post on every page view. Instead, the posts of the last hot.window are
+ * kept in a skip list ordered by score, which readers walk without taking any
+ * lock. Every new post, comment and like rescores its post straight away. Since
+ * scores fall with time, the HotPostRescore job regularly rescores every post,
+ * and forgets those which are older than the window.
+ *
+ * The ranking is loaded at startup by the Bootstrap job. Post's callbacks feed it
+ * new, edited and deleted posts, including those saved through the CRUD admin,
+ * and Post and LikeCounters feed it new and recounted comments, and likes. All
+ * of them only change the ranking once their transaction is committed, so a
+ * write which is rolled back doesn't leave a phantom post taking a place in the
+ * ranking.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import play.*;
+import play.libs.Time;
+
+public class HotPosts {
+
+    /* How much each kind of activity adds to a post's points */
+    public static final double LIKE_WEIGHT = 1.0;
+    public static final double COMMENT_WEIGHT = 2.0;
+    public static final double RATING_WEIGHT = 0.5;     //Per star above or below 3
+
+    /* How fast scores fall with age */
+    public static final double GRAVITY = Double.parseDouble(Play.configuration.getProperty("hot.gravity", "1.8"));
+
+    /* Age after which posts aren't ranked any more, in milliseconds */
+    public static final long WINDOW = Time.parseDuration(Play.configuration.getProperty("hot.window", "3d")) * 1000L;
+
+    private static final ConcurrentHashMap<Long, Stats> posts = new ConcurrentHashMap<Long, Stats>();
+    private static final ConcurrentSkipListSet<Ranked> ranking = new ConcurrentSkipListSet<Ranked>();
+
+    /**
+     * (Re)loads the ranking from the database
+     */
+    public static void load() {
+        List<Object[]> rows = Post.find("select p.id, p.postedAt, p.rating, p.likecount, p.commentCount from Post p where p.postedAt > ?1",
+            new Date(System.currentTimeMillis() - WINDOW)).fetch();
+
+        posts.clear();
+        ranking.clear();
+        long now = System.currentTimeMillis();
+        for(Object[] row : rows) {
+            Stats stats = new Stats((Long)row[0], ((Date)row[1]).getTime(), (Integer)row[2], (Integer)row[3], (Integer)row[4]);
+            posts.put(stats.id, stats);
+            synchronized(stats) {
+                stats.rank(now);
+            }
+        }
+    }
+
+    /**
+     * Returns the IDs of the hottest posts, hottest first
+     *
+     * @param amount    The maximum number of posts to return
+     * @return          The IDs of the posts
+     */
+    public static List<Long> topIds(int amount) {
+        List<Long> ids = new ArrayList<Long>();
+        for(Iterator<Ranked> it = ranking.iterator(); it.hasNext() && ids.size() < amount; )
+            ids.add(it.next().id);
+        return ids;
+    }
+
+    /**
+     * Returns the hottest posts, hottest first
+     *
+     * @param amount    The maximum number of posts to return
+     * @return          The posts
+     */
+    public static List<Post> top(int amount) {
+        List<Long> ids = topIds(amount);
+        if(ids.isEmpty())
+            return new ArrayList<Post>();
+
+        Map<Long, Post> loaded = new HashMap<Long, Post>();
+        List<Post> found = Post.find("id in (?1)", ids).fetch();
+        for(Post post : found)
+            loaded.put(post.id, post);
+
+        //Keep the ranking's order, skipping posts deleted since
+        List<Post> top = new ArrayList<Post>();
+        for(Long id : ids) {
+            if(loaded.containsKey(id))
+                top.add(loaded.get(id));
+        }
+        return top;
+    }
+
+    /**
+     * Adds a post to the ranking, or rescores it after it was edited. The counts
+     * of posts already ranked are kept, since they may be ahead of the post's
+     * columns.
+     *
+     * @param post  The post
+     */
+    public static void put(Post post) {
+        if(post.id == null || post.postedAt == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        if(post.postedAt.getTime() <= now - WINDOW) {
+            delete(post.id);
+            return;
+        }
+
+        Stats stats = posts.get(post.id);
+        if(stats == null) {
+            Stats added = new Stats(post.id, post.postedAt.getTime(), post.rating, post.likecount, post.commentCount);
+            stats = posts.putIfAbsent(post.id, added);
+            if(stats == null)
+                stats = added;
+        }
+
+        synchronized(stats) {
+            stats.postedAt = post.postedAt.getTime();
+            stats.rating = post.rating;
+            stats.rank(now);
+        }
+    }
+
+    /**
+     * Removes a post from the ranking
+     *
+     * @param id    The ID of the post
+     */
+    public static void delete(Long id) {
+        Stats stats = posts.remove(id);
+        if(stats != null) {
+            synchronized(stats) {
+                stats.removed = true;
+                stats.unrank();
+            }
+        }
+    }
+
+    /**
+     * Records a new comment on a post
+     *
+     * @param id    The ID of the post
+     */
+    public static void commented(Long id) {
+        Stats stats = posts.get(id);
+        if(stats != null) {
+            synchronized(stats) {
+                stats.comments++;
+                stats.rank(System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Sets the number of comments of a post, after they were recounted
+     *
+     * @param id        The ID of the post
+     * @param comments  Its number of comments
+     */
+    public static void recounted(Long id, int comments) {
+        Stats stats = posts.get(id);
+        if(stats != null) {
+            synchronized(stats) {
+                stats.comments = comments;
+                stats.rank(System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Records a new like of a post
+     *
+     * @param id    The ID of the post
+     */
+    public static void liked(Long id) {
+        Stats stats = posts.get(id);
+        if(stats != null) {
+            synchronized(stats) {
+                stats.likes++;
+                stats.rank(System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Rescores every post for the time that went by, and forgets the posts which
+     * are older than the window
+     */
+    public static void rescore() {
+        long now = System.currentTimeMillis();
+        for(Stats stats : posts.values()) {
+            if(stats.postedAt <= now - WINDOW) {
+                delete(stats.id);
+                continue;
+            }
+            synchronized(stats) {
+                stats.rank(now);
+            }
+        }
+    }
+
+    /**
+     * Computes the score of a post
+     *
+     * @param postedAt  When the post was written, in milliseconds
+     * @param rating    Its rating, 0 if it has none
+     * @param likes     Its number of likes
+     * @param comments  Its number of comments
+     * @param now       The current time, in milliseconds
+     * @return          The score
+     */
+    public static double score(long postedAt, int rating, int likes, int comments, long now) {
+        double points = 1 + LIKE_WEIGHT * likes + COMMENT_WEIGHT * comments;
+        if(rating >= 1 && rating <= 5)
+            points += RATING_WEIGHT * (rating - 3);
+
+        double hours = Math.max(0, now - postedAt) / (60.0 * 60 * 1000);
+        return Math.max(0, points) / Math.pow(hours + 2, GRAVITY);
+    }
+
+    /**
+     * What a post's score is computed from. Guarded by itself.
+     */
+    private static class Stats {
+        final Long id;
+        long postedAt;
+        int rating;
+        int likes;
+        int comments;
+        Ranked ranked;          //The post's place in the ranking, if any
+        boolean removed;        //Set once the post is removed, so it's never ranked again
+
+        Stats(Long id, long postedAt, int rating, int likes, int comments) {
+            this.id = id;
+            this.postedAt = postedAt;
+            this.rating = rating;
+            this.likes = likes;
+            this.comments = comments;
+        }
+
+        /**
+         * Moves the post to its place in the ranking for its current score,
+         * unless it was removed meanwhile
+         */
+        void rank(long now) {
+            if(removed)
+                return;
+            unrank();
+            ranked = new Ranked(id, score(postedAt, rating, likes, comments, now));
+            ranking.add(ranked);
+        }
+
+        void unrank() {
+            if(ranked != null)
+                ranking.remove(ranked);
+            ranked = null;
+        }
+    }
+
+    /**
+     * A post's place in the ranking: hottest first, then newest first
+     */
+    private static class Ranked implements Comparable<Ranked> {
+        final Long id;
+        final double score;
+
+        Ranked(Long id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        public int compareTo(Ranked other) {
+            int byScore = Double.compare(other.score, score);
+            return byScore != 0 ? byScore : other.id.compareTo(id);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * ImageCache.java
+ *
+ * Bounded cache of the bytes of the most requested pictures, kept outside of the
+ * Java heap.
+ *
+ * A few pictures, such as the front page post's, the best restaurants' and the
+ * default profile picture, make up most of the picture traffic. Rather than
+ * reading them from disk on every request, their bytes are kept in direct
+ * buffers, which the garbage collector doesn't copy or scan. The total size of
+ * the cache is capped by images.cache.size. When it's full, the least recently
+ * used pictures are dropped. Pictures larger than images.cache.entry are never
+ * cached, so a few large ones can't push out many small ones.
+ *
+ * A picture is only cached the second time it's missed while it's still
+ * remembered as recently missed. Caching every picture on its first request
+ * would let a crawler walking through every picture once push the popular ones
+ * out, and allocate a direct buffer for each picture it visits, which is only
+ * freed by a full garbage collection. The recently missed pictures are
+ * remembered by key only, and at most images.cache.candidates of them.
+ *
+ * Pictures are identified by their content when it's known, so a photo
+ * uploaded ten times is cached once. Other files are identified by their path,
+ * their size and the date they were last modified, so a file which changes is
+ * read again. Hits, misses and evictions are counted, and can be read with
+ * stats().
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import play.*;
+
+public class ImageCache {
+
+    /* Maximum total size of the cached pictures, in bytes */
+    public static final long CAPACITY = parseSize(Play.configuration.getProperty("images.cache.size", "64MB"));
+
+    /* Maximum size of a single cached picture, in bytes */
+    public static final long MAX_ENTRY = parseSize(Play.configuration.getProperty("images.cache.entry", "1MB"));
+
+    /* Maximum number of recently missed pictures remembered, waiting for a second miss to be cached */
+    public static final int CANDIDATES = Integer.parseInt(Play.configuration.getProperty("images.cache.candidates", "10000"));
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+    private static final AtomicLong admissions = new AtomicLong();
+
+    private static long size;        //Total size of the cached pictures, guarded by entries
+
+    //Least recently used pictures come first
+    private static final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+
+    //Keys of the pictures missed once, least recently missed first, guarded by entries
+    private static final LinkedHashMap<String, Boolean> candidates = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > CANDIDATES;
+        }
+    };
+
+    /**
+     * Returns the bytes of a picture, reading it into the cache if it isn't there
+     * and was missed recently
+     *
+     * @param file        The picture's file
+     * @param contentKey  A key identifying the content of the file, such as its
+     *                    hash, or null to identify the file by its path
+     * @return            A read-only buffer over the bytes of the file, which the
+     *                    caller may read from, or null if the file is too large
+     *                    to be cached or wasn't missed before
+     */
+    public static ByteBuffer get(File file, String contentKey) {
+        long length = file.length();
+        if(length == 0 || length > MAX_ENTRY || length > CAPACITY)
+            return null;
+
+        String key = contentKey != null ? contentKey : file.getPath() + ":" + length + ":" + file.lastModified();
+        synchronized(entries) {
+            ByteBuffer cached = entries.get(key);
+            if(cached != null) {
+                hits.incrementAndGet();
+                return cached.duplicate();
+            }
+
+            //Only cache pictures which are asked for again, remembering the others until they are
+            misses.incrementAndGet();
+            if(candidates.remove(key) == null) {
+                candidates.put(key, Boolean.TRUE);
+                return null;
+            }
+        }
+
+        admissions.incrementAndGet();
+        ByteBuffer bytes;
+        try {
+            bytes = read(file, (int)length);
+        }
+        catch(IOException e) {
+            Logger.warn(e, "Couldn't cache picture %s", file);
+            return null;
+        }
+
+        synchronized(entries) {
+            //Another request may have cached it first, in which case ours replaces it
+            ByteBuffer replaced = entries.put(key, bytes);
+            size += bytes.capacity() - (replaced == null ? 0 : replaced.capacity());
+
+            Iterator<ByteBuffer> eldest = entries.values().iterator();
+            while(size > CAPACITY && eldest.hasNext()) {
+                size -= eldest.next().capacity();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        return bytes.duplicate();
+    }
+
+    /**
+     * Returns the cache's statistics
+     *
+     * @return A map with the number of "hits", "misses", "admissions" (misses
+     *         which cached the picture) and "evictions", the number of cached
+     *         "entries" and their total "bytes"
+     */
+    public static Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("admissions", admissions.get());
+        stats.put("evictions", evictions.get());
+        synchronized(entries) {
+            stats.put("entries", (long)entries.size());
+            stats.put("bytes", size);
+        }
+        return stats;
+    }
+
+    /**
+     * Reads a whole file into a new direct buffer
+     */
+    private static ByteBuffer read(File file, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(length);
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            while(bytes.hasRemaining() && channel.read(bytes) != -1);
+        }
+        finally {
+            channel.close();
+        }
+
+        bytes.flip();
+        return bytes.asReadOnlyBuffer();
+    }
+
+    /**
+     * Parses a size such as "64MB", "512KB" or "1000"
+     */
+    private static long parseSize(String size) {
+        String value = size.trim().toUpperCase();
+        long unit = 1;
+        if(value.endsWith("GB"))
+            unit = 1024L * 1024 * 1024;
+        else if(value.endsWith("MB"))
+            unit = 1024L * 1024;
+        else if(value.endsWith("KB"))
+            unit = 1024L;
+        if(unit > 1)
+            value = value.substring(0, value.length() - 2).trim();
+        return Long.parseLong(value) * unit;
+    }
+}
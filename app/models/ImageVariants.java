@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * ImageVariants.java
+ *
+ * Resized copies of uploaded pictures, so pages showing a small avatar don't
+ * download and decode a full resolution photo.
+ *
+ * Every uploaded picture is decoded once, on a small pool of worker threads, and
+ * written back at each of the sizes below: a thumbnail for avatars and lists, a
+ * card for profile pages, and a full size capped at a resolution which still
+ * looks good on a large screen. Pictures are only ever scaled down, keeping
+ * their proportions.
+ *
+ * Variants are stored next to the content of the picture in the BlobStore,
+ * named after its SHA-256 hash and the size, so a photo uploaded ten times is
+ * only decoded and scaled once, and its variants stored once. Pictures which
+ * weren't hashed or stored by content have theirs next to the upload, named
+ * after the blob's UUID.
+ * Variants are written to a temporary file first and then renamed, so a variant
+ * is either complete or missing. When a variant is missing, for example because
+ * the picture was uploaded before this was added or the pool was too busy, the
+ * original is served and the variants are generated in the background.
+ *
+ * Pictures which can't be decoded, such as CMYK JPEGs or formats ImageIO doesn't
+ * know, are marked with an empty ".failed" file next to their variants, and
+ * always served as uploaded rather than decoded again on every request.
+ *
+ * The pool and its queue are bounded, so a burst of uploads can't use up the
+ * memory of the server decoding pictures. The number of workers is set with
+ * images.workers and the size of the queue with images.queue.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+
+import play.*;
+import play.db.jpa.Blob;
+
+public class ImageVariants {
+
+    /**
+     * The sizes pictures are served at, with the largest width or height of each
+     */
+    public enum Size {
+        THUMB(96),
+        CARD(320),
+        FULL(1280);
+
+        public final int pixels;
+
+        Size(int pixels) {
+            this.pixels = pixels;
+        }
+
+        /**
+         * Parses the size parameter of an image action
+         *
+         * @param name  "thumb", "card" or "full", in any case
+         * @return      The size, FULL if the name is null or unknown
+         */
+        public static Size parse(String name) {
+            if(name != null) {
+                for(Size size : values()) {
+                    if(size.name().equalsIgnoreCase(name))
+                        return size;
+                }
+            }
+            return FULL;
+        }
+    }
+
+    private static final int WORKERS = Integer.parseInt(Play.configuration.getProperty("images.workers", "2"));
+    private static final int QUEUE = Integer.parseInt(Play.configuration.getProperty("images.queue", "100"));
+
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(QUEUE),
+        new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "image-variants");
+                thread.setDaemon(true);
+                return thread;
+            }
+        },
+        new ThreadPoolExecutor.DiscardPolicy());        //Dropped pictures are generated again the next time they're requested
+
+    /* Hashes, or UUIDs if they have none, of the pictures waiting for or being processed */
+    private static final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Generates the variants of an uploaded picture in the background, unless
+     * the same picture already has them
+     *
+     * @param blob  The picture, which may be null or empty
+     * @param hash  Its SHA-256 hash, or null if it wasn't hashed
+     */
+    public static void generate(final Blob blob, final String hash) {
+        if(blob == null || !blob.exists() || complete(blob, hash) || failedFile(blob, hash).exists())
+            return;
+
+        final String key = hash != null ? hash : blob.getUUID();
+        if(!pending.add(key))
+            return;
+
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        write(blob, hash);
+                    }
+                    catch(Exception e) {
+                        Logger.warn(e, "Couldn't generate the variants of picture %s", key);
+                    }
+                    finally {
+                        pending.remove(key);
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException e) {
+            pending.remove(key);
+        }
+    }
+
+    /**
+     * Returns the file of a picture at some size, if it has been generated. If it
+     * hasn't, it's generated in the background, and the caller should serve the
+     * original in the meantime.
+     *
+     * @param blob  The picture
+     * @param hash  Its SHA-256 hash, or null if it wasn't hashed
+     * @param size  The size wanted
+     * @return      The file, or null if it isn't there yet
+     */
+    public static File file(Blob blob, String hash, Size size) {
+        if(blob == null || !blob.exists())
+            return null;
+
+        File variant = variantFile(blob, hash, size);
+        if(variant.exists())
+            return variant;
+
+        //Made from the upload before it was hashed, so share it with the other uploads of the same picture
+        File unhashed = variantFile(blob, null, size);
+        if(hash != null && unhashed.exists() && unhashed.renameTo(variant))
+            return variant;
+
+        //Generates it unless the picture couldn't be decoded before
+        generate(blob, hash);
+        return null;
+    }
+
+    /**
+     * Returns the content type of the variants of a picture. Pictures which may
+     * be transparent are kept as PNG, everything else is converted to JPEG.
+     *
+     * @param blob  The picture
+     * @return      The content type of its variants
+     */
+    public static String type(Blob blob) {
+        return keepsAlpha(blob) ? "image/png" : "image/jpeg";
+    }
+
+    /**
+     * Computes the SHA-256 hash of an uploaded picture. It's stored with the
+     * entity the picture belongs to when it's uploaded, and used to version the
+     * picture's URLs and as its ETag.
+     *
+     * @param blob  The picture, which may be null or empty
+     * @return      The hash as a hexadecimal string, or null if there's no picture
+     */
+    public static String hash(Blob blob) {
+        if(blob == null || !blob.exists())
+            return null;
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            InputStream in = new FileInputStream(blob.getFile());
+            try {
+                byte[] buffer = new byte[8192];
+                for(int read = in.read(buffer); read != -1; read = in.read(buffer))
+                    digest.update(buffer, 0, read);
+            }
+            finally {
+                in.close();
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for(byte b : digest.digest())
+                hex.append(String.format("%02x", b & 0xff));
+            return hex.toString();
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        catch(IOException e) {
+            Logger.warn(e, "Couldn't hash picture %s", blob.getUUID());
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a picture once and writes every variant of it
+     */
+    private static void write(Blob blob, String hash) throws IOException {
+        BufferedImage original;
+        try {
+            original = ImageIO.read(blob.getFile());
+        }
+        catch(IOException e) {
+            markFailed(blob, hash);
+            throw e;
+        }
+        catch(RuntimeException e) {
+            //Some decoders fail on color spaces they don't support rather than reporting it
+            markFailed(blob, hash);
+            throw e;
+        }
+        if(original == null) {
+            markFailed(blob, hash);
+            throw new IOException("Unsupported image format: " + blob.type());
+        }
+
+        boolean alpha = keepsAlpha(blob);
+        for(Size size : Size.values()) {
+            File variant = variantFile(blob, hash, size);
+            if(variant.exists())
+                continue;
+
+            File temp = new File(variant.getPath() + ".tmp");
+            ImageIO.write(scale(original, size.pixels, alpha), alpha ? "png" : "jpg", temp);
+            if(!temp.renameTo(variant))
+                temp.delete();
+        }
+    }
+
+    /**
+     * Scales a picture down so that neither side is larger than some number of
+     * pixels
+     */
+    private static BufferedImage scale(BufferedImage original, int pixels, boolean alpha) {
+        double ratio = Math.min(1.0, (double)pixels / Math.max(original.getWidth(), original.getHeight()));
+        int width = Math.max(1, (int)Math.round(original.getWidth() * ratio));
+        int height = Math.max(1, (int)Math.round(original.getHeight() * ratio));
+
+        BufferedImage scaled = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            if(!alpha) {
+                //JPEG has no transparency, so transparent pixels become white rather than black
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, width, height);
+            }
+            graphics.drawImage(original, 0, 0, width, height, null);
+        }
+        finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private static boolean keepsAlpha(Blob blob) {
+        String type = blob.type();
+        return type != null && (type.contains("png") || type.contains("gif"));
+    }
+
+    /**
+     * Tells whether every variant of a picture exists
+     */
+    private static boolean complete(Blob blob, String hash) {
+        for(Size size : Size.values()) {
+            if(!variantFile(blob, hash, size).exists())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks a picture as impossible to decode, so it's never tried again
+     */
+    private static void markFailed(Blob blob, String hash) {
+        try {
+            failedFile(blob, hash).createNewFile();
+        }
+        catch(IOException e) {
+            Logger.warn(e, "Couldn't mark picture %s as undecodable", hash != null ? hash : blob.getUUID());
+        }
+    }
+
+    private static File failedFile(Blob blob, String hash) {
+        return derivedFile(blob, hash, "failed");
+    }
+
+    private static File variantFile(Blob blob, String hash, Size size) {
+        return derivedFile(blob, hash, size.name().toLowerCase());
+    }
+
+    /**
+     * Returns a file made from a picture: next to its content if it was hashed
+     * and stored once, next to its upload otherwise
+     */
+    private static File derivedFile(Blob blob, String hash, String suffix) {
+        //The content isn't stored when the file system has no hard links
+        if(hash != null && new File(BlobStore.contentDirectory(), hash).exists())
+            return new File(BlobStore.contentDirectory(), hash + "." + suffix);
+        return new File(Blob.getStore(), blob.getUUID() + "." + suffix);
+    }
+}
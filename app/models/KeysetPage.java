@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * KeysetPage.java
+ *
+ * One page of results fetched with keyset (seek) pagination.
+ *
+ * Instead of skipping a number of rows with an OFFSET, which makes the database
+ * read every row before the page, each page remembers the sort key of its last
+ * row. The next page is then fetched with a "key < last key" condition, which
+ * the database can answer with a single index range scan no matter how deep the
+ * page is.
+ *
+ * The key of the last row is handed to templates as an opaque cursor string. For
+ * posts and comments it is made of the date posted and the ID, since several
+ * rows may have been posted at the same time. For follower lists it is the ID of
+ * the followerRelation.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+
+public class KeysetPage<T> {
+
+    public final List<T> items;     //The rows on this page
+    public final String next;       //Cursor for the next page, null if this is the last one
+
+    /**
+     * Constructor taking the rows on the page and the cursor of the next page
+     *
+     * @param items The rows on this page
+     * @param next  Cursor for the next page, or null if there is none
+     */
+    public KeysetPage(List<T> items, String next) {
+        this.items = items;
+        this.next = next;
+    }
+
+    /**
+     * Returns whether there is a page after this one
+     *
+     * @return true if there are more rows after this page, false otherwise
+     */
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    /**
+     * Builds a cursor from the date posted and ID of a post or comment
+     *
+     * @param postedAt  The date the row was posted
+     * @param id        The ID of the row
+     * @return          The cursor
+     */
+    public static String cursor(Date postedAt, Long id) {
+        return postedAt.getTime() + "_" + id;
+    }
+
+    /**
+     * Parses a cursor made by cursor(Date, Long)
+     *
+     * @param cursor    The cursor, as passed back by the browser
+     * @return          The date posted and ID, in that order, or null if there is
+     *                  no cursor or it isn't valid
+     */
+    public static long[] parseTimeAndId(String cursor) {
+        if(cursor == null)
+            return null;
+
+        String[] parts = cursor.split("_");
+        if(parts.length != 2)
+            return null;
+
+        try {
+            return new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+        }
+        catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a cursor made only of an ID
+     *
+     * @param cursor    The cursor, as passed back by the browser
+     * @return          The ID, or null if there is no cursor or it isn't valid
+     */
+    public static Long parseId(String cursor) {
+        if(cursor == null)
+            return null;
+
+        try {
+            return Long.parseLong(cursor);
+        }
+        catch(NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * LikeCounters.java
+ *
+ * Likes, recorded once per user and post, and counted in memory before being
+ * written to the posts in batches.
+ *
+ * Incrementing a post's like count on every click would lock the post's row
+ * every time, so clicks on a popular post would queue up behind each other.
+ * Instead, every like is first recorded as a PostLike row, whose unique
+ * constraint makes sure a user only likes a post once, and added to an
+ * in-memory counter once that row is committed. The LikeFlush job periodically
+ * writes the counted likes to Post.likecount, with one UPDATE for all the posts
+ * which got the same number of likes, so the row of a post is only locked once
+ * per flush however many times it's liked.
+ *
+ * Counters are striped by thread, the way a LongAdder is: every thread counts
+ * into its own stripe, so clicks on the same post from different requests don't
+ * contend. Flushing swaps each stripe's counts for an empty map, so no click is
+ * counted twice or lost, and only posts liked since the last flush use memory.
+ *
+ * The LikeFlushOnStop job writes the last counted likes when the application
+ * stops. Should it not get the chance, for example after a crash, the likes
+ * counted in memory are lost, but their PostLike rows aren't: the
+ * LikeReconciliation job periodically recounts the likes of every post from
+ * them, and repairs the counts which drifted.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+
+import javax.persistence.*;
+
+import play.*;
+import play.db.jpa.*;
+
+public class LikeCounters {
+
+    /* Number of stripes the counts are spread over */
+    private static final int STRIPES = Integer.parseInt(Play.configuration.getProperty("likes.stripes", "16"));
+
+    /* Maximum number of posts updated by a single statement */
+    private static final int BATCH_SIZE = 500;
+
+    /* Time after which a like must have been counted, in milliseconds. Posts liked more recently aren't reconciled. */
+    private static final long SETTLE_TIME = 60 * 1000L;
+
+    //Likes counted since the last flush, by post ID, in each stripe
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+
+    static {
+        for(int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * Records that a user likes a post, unless they already did. The like is
+     * inserted in the request's transaction, and counted once it's committed.
+     * Should another request have recorded the same like first, the unique
+     * constraint rejects this one and the transaction is rolled back, since
+     * nothing else was written. Any other database error is thrown.
+     *
+     * @param userId    The ID of the user
+     * @param postId    The ID of the post
+     * @return          true if the like was recorded, false if the user had
+     *                  already liked the post
+     */
+    public static boolean like(Long userId, final Long postId) {
+        if(PostLike.count("user.id = ?1 and post.id = ?2", userId, postId) > 0)
+            return false;
+
+        try {
+            JPA.em().persist(new PostLike(JPA.em().getReference(User.class, userId), JPA.em().getReference(Post.class, postId)));
+            JPA.em().flush();
+        }
+        catch(PersistenceException e) {
+            if(!Transactions.isUniqueViolation(e))
+                throw e;
+
+            //Another request recorded the same like first
+            JPA.setRollbackOnly();
+            return false;
+        }
+
+        Transactions.afterCommit(new Runnable() {
+            public void run() {
+                add(postId, 1);
+                HotPosts.liked(postId);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns the likes of a post which haven't been written to it yet
+     *
+     * @param postId    The ID of the post
+     * @return          The number of likes to add to its likecount
+     */
+    public static long pending(Long postId) {
+        long count = 0;
+        for(Stripe stripe : stripes) {
+            synchronized(stripe) {
+                long[] counter = stripe.counts.get(postId);
+                if(counter != null)
+                    count += counter[0];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the likes counted since the last flush to the posts, in the calling
+     * job's transaction. Posts getting the same number of likes are updated by
+     * the same statement. Should the transaction be rolled back, the likes are
+     * counted again, to be written by the next flush.
+     */
+    public static void flush() {
+        final Map<Long, Long> deltas = new HashMap<Long, Long>();
+        for(Stripe stripe : stripes) {
+            Map<Long, long[]> counts;
+            synchronized(stripe) {
+                counts = stripe.counts;
+                stripe.counts = new HashMap<Long, long[]>();
+            }
+            for(Map.Entry<Long, long[]> count : counts.entrySet()) {
+                Long delta = deltas.get(count.getKey());
+                deltas.put(count.getKey(), (delta == null ? 0 : delta) + count.getValue()[0]);
+            }
+        }
+        if(deltas.isEmpty())
+            return;
+
+        Transactions.afterRollback(new Runnable() {
+            public void run() {
+                Logger.warn("Couldn't write the likes of %d posts, will try again", deltas.size());
+                for(Map.Entry<Long, Long> delta : deltas.entrySet())
+                    add(delta.getKey(), delta.getValue());
+            }
+        });
+        write(deltas);
+    }
+
+    /**
+     * Recounts the likes of every post from the PostLike rows, and repairs the
+     * like counts which differ, for example because counted likes were lost when
+     * the application stopped. Posts with likes waiting to be flushed, or liked
+     * too recently for their likes to have been counted, are left for the next
+     * run, since the database may or may not include those likes yet. A count
+     * which changes while being repaired is left as it is.
+     *
+     * @return  The number of posts repaired
+     */
+    public static int reconcile() {
+        List<Object[]> rows = Post.find("select p.id, p.likecount, count(l.id), max(l.likedAt) from Post p left join p.likes l group by p.id, p.likecount having count(l.id) <> p.likecount").fetch();
+
+        Date settled = new Date(System.currentTimeMillis() - SETTLE_TIME);
+        int repaired = 0;
+        for(Object[] row : rows) {
+            Long id = (Long)row[0];
+            Date lastLiked = (Date)row[3];
+            if((lastLiked != null && lastLiked.after(settled)) || pending(id) != 0)
+                continue;
+
+            repaired += JPA.em().createQuery("update Post p set p.likecount = :count where p.id = :id and p.likecount = :old")
+                .setParameter("count", ((Number)row[2]).intValue())
+                .setParameter("id", id)
+                .setParameter("old", row[1])
+                .executeUpdate();
+        }
+        return repaired;
+    }
+
+    /**
+     * Adds likes to a post's counter, in the calling thread's stripe
+     */
+    private static void add(Long postId, long delta) {
+        Stripe stripe = stripes[(int)(Thread.currentThread().getId() % STRIPES)];
+        synchronized(stripe) {
+            long[] counter = stripe.counts.get(postId);
+            if(counter == null)
+                stripe.counts.put(postId, new long[] {delta});
+            else
+                counter[0] += delta;
+        }
+    }
+
+    /**
+     * Updates the like counts of posts, with one statement per distinct number of
+     * likes
+     */
+    private static void write(Map<Long, Long> deltas) {
+        Map<Long, List<Long>> postsByDelta = new HashMap<Long, List<Long>>();
+        for(Map.Entry<Long, Long> delta : deltas.entrySet()) {
+            List<Long> posts = postsByDelta.get(delta.getValue());
+            if(posts == null)
+                postsByDelta.put(delta.getValue(), posts = new ArrayList<Long>());
+            posts.add(delta.getKey());
+        }
+
+        for(Map.Entry<Long, List<Long>> batch : postsByDelta.entrySet()) {
+            List<Long> posts = batch.getValue();
+            for(int start = 0; start < posts.size(); start += BATCH_SIZE) {
+                JPA.em().createQuery("update Post p set p.likecount = p.likecount + :delta where p.id in (:ids)")
+                    .setParameter("delta", batch.getKey().intValue())
+                    .setParameter("ids", posts.subList(start, Math.min(start + BATCH_SIZE, posts.size())))
+                    .executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * The likes counted by some of the threads, by post ID
+     */
+    private static class Stripe {
+        Map<Long, long[]> counts = new HashMap<Long, long[]>();     //Guarded by the stripe
+    }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * NaturalKeyIndex.java
+ *
+ * In-memory index from the natural keys of entities, such as a restaurant's
+ * name, city and state, to their IDs.
+ *
+ * Models which find entities by what the user typed, and create them when
+ * they don't exist yet, use it twice: to answer repeat lookups without a query,
+ * and to make sure two concurrent requests can't both create the same entity.
+ * For the latter, callers hold the lock returned by lockFor() while they check
+ * the database and create the entity. Locks are striped, so requests for
+ * different entities rarely wait for each other.
+ *
+ * An entity may be listed under several keys, for example a restaurant under
+ * (name, city, state), (name, city) and (name). When several entities share a
+ * key, the one with the lowest ID is listed.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class NaturalKeyIndex {
+
+    private final ConcurrentHashMap<String, Long> ids = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentHashMap<Long, String[]> keysById = new ConcurrentHashMap<Long, String[]>();
+    private final Object[] stripes;
+
+    /**
+     * @param stripes   The number of locks to spread keys over
+     */
+    public NaturalKeyIndex(int stripes) {
+        this.stripes = new Object[stripes];
+        for(int i = 0; i < stripes; i++)
+            this.stripes[i] = new Object();
+    }
+
+    /**
+     * Normalizes one component of a key, so that lookups ignore case and
+     * surrounding spaces
+     *
+     * @param value The value, which may be null
+     * @return      The normalized value
+     */
+    public static String normalize(Object value) {
+        return value == null ? "" : value.toString().trim().toLowerCase();
+    }
+
+    /**
+     * Builds a key out of several components. Keys with a different number of
+     * components never clash.
+     *
+     * @param components    The components, which may be null
+     * @return              The key
+     */
+    public static String key(Object... components) {
+        StringBuilder key = new StringBuilder();
+        key.append(components.length);
+        for(Object component : components)
+            key.append('\u0000').append(normalize(component));
+        return key.toString();
+    }
+
+    /**
+     * Returns the ID listed under a key
+     *
+     * @param key   The key
+     * @return      The ID, or null if there's none
+     */
+    public Long get(String key) {
+        return ids.get(key);
+    }
+
+    /**
+     * Lists an entity under some keys, replacing the keys it was listed under
+     * before
+     *
+     * @param id    The entity's ID
+     * @param keys  All the keys it should be listed under
+     */
+    public void put(Long id, String... keys) {
+        String[] old = keysById.put(id, keys);
+        if(old != null) {
+            for(String key : old)
+                ids.remove(key, id);
+        }
+
+        for(String key : keys) {
+            Long listed = ids.putIfAbsent(key, id);
+            while(listed != null && listed > id && !ids.replace(key, listed, id))
+                listed = ids.putIfAbsent(key, id);
+        }
+    }
+
+    /**
+     * Removes an entity from every key it was listed under. Other entities sharing
+     * those keys are found again the next time they're looked up in the database.
+     *
+     * @param id    The entity's ID
+     */
+    public void remove(Long id) {
+        String[] old = keysById.remove(id);
+        if(old != null) {
+            for(String key : old)
+                ids.remove(key, id);
+        }
+    }
+
+    /**
+     * Empties the index
+     */
+    public void clear() {
+        ids.clear();
+        keysById.clear();
+    }
+
+    /**
+     * Returns the lock to hold while checking for and creating an entity
+     *
+     * @param key   Any value shared by every key the entity could be found under
+     * @return      The lock
+     */
+    public Object lockFor(String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+    }
+}
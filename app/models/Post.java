@@ -22,11 +22,17 @@ import javax.persistence.*;
 
 import play.data.binding.*;
 import play.data.validation.*;
+import play.db.jpa.JPA;
 import play.db.jpa.Model;
 import play.db.jpa.Blob;
 
 
 @Entity
+@org.hibernate.annotations.Table(appliesTo = "Post", indexes = {
+    @org.hibernate.annotations.Index(name = "post_author_posted", columnNames = {"author_id", "postedAt", "id"}),
+    @org.hibernate.annotations.Index(name = "post_restaurant_posted", columnNames = {"restaurant_id", "postedAt", "id"})
+})
+@org.hibernate.annotations.Entity(dynamicUpdate = true)	//Never write back the comment and like counts, which are only changed by bulk updates
 public class Post extends Model {
 
     @Required
@@ -41,20 +47,27 @@ public class Post extends Model {
     public String content;          //Content of the post
 
     public Blob pic;                //Picture for the post, if any
+    public String picHash;          //SHA-256 of the picture, used to version its URL
 
     @Required
     @ManyToOne
     public User author;             //User who authored the post. Unlike comments,
                                     //users must be logged in to post.
     @OneToMany(mappedBy="post", cascade=CascadeType.ALL)
-    public List<Comment> comments;  //Comments, if any
+    public List<Comment> comments;  //Comments, if any. Not loaded when commenting.
+
+    public int commentCount = 0;    //Number of comments
+    public Date lastCommentAt;      //Date of the last comment, if any
 
     @ManyToOne
     public Restaurant restaurant;   //Restaurant associated with the post, if any
 
     public int rating;              //Rating, if any
 
-    public int likecount = 0;       //Post likes. Not yet implemented
+    public int likecount = 0;       //Post likes, written in batches by LikeCounters
+
+    @OneToMany(mappedBy="post", cascade=CascadeType.REMOVE)
+    public List<PostLike> likes;    //Who liked the post, deleted along with it
 
     @ManyToMany(cascade=CascadeType.PERSIST)
     public Set<Tag> tags;           //Tags for the post
@@ -164,10 +177,7 @@ public class Post extends Model {
      * @return          A reference to the modified Post object
      */
     public Post addComment(String author, String content) {
-        Comment newComment = new Comment(this, author, content);
-        this.comments.add(newComment);
-        this.save();
-        return this;
+        return append(new Comment(this, author, content));
     }
 
     /**
@@ -178,12 +188,73 @@ public class Post extends Model {
      * @return          A reference to the modified Post object
      */
     public Post addComment(User author, String content) {
-        Comment newComment = new Comment(this, author, content);
-        this.comments.add(newComment);
-        this.save();
+        return append(new Comment(this, author, content));
+    }
+
+    /**
+     * Saves a new comment without loading the post's other comments. The comment
+     * is inserted on its own, and the post's comment count and date of last
+     * comment are bumped by a bulk update, so commenting costs the same no matter
+     * how many comments the post already has.
+     *
+     * @param comment   The new comment on this post
+     * @return          A reference to this post
+     */
+    private Post append(Comment comment) {
+        comment.save();
+        JPA.em().createQuery("update Post p set p.commentCount = p.commentCount + 1, p.lastCommentAt = :postedAt where p.id = :id")
+            .setParameter("postedAt", comment.postedAt)
+            .setParameter("id", id)
+            .executeUpdate();
+
+        //If the comments were already loaded, keep them in step
+        if(comments != null && org.hibernate.Hibernate.isInitialized(comments))
+            comments.add(comment);
+
+        final Long id = this.id;
+        Transactions.afterCommit(new Runnable() {
+            public void run() {
+                HotPosts.commented(id);
+            }
+        });
         return this;
     }
 
+    /**
+     * Recounts the comments of every post, and repairs the comment counts and
+     * dates of last comment which differ, for example because comments were
+     * deleted through the CRUD admin, which doesn't go through append(). Fills
+     * them in the first time too. A count which changes while being repaired,
+     * because a comment was just written, is left as it is.
+     *
+     * @return  The number of posts repaired
+     */
+    public static int reconcileCommentCounts() {
+        List<Object[]> rows = Post.find("select p.id, p.commentCount, count(c.id), max(c.postedAt) from Post p left join p.comments c group by p.id, p.commentCount having count(c.id) <> p.commentCount").fetch();
+
+        int repaired = 0;
+        for(Object[] row : rows) {
+            final Long id = (Long)row[0];
+            final int count = ((Number)row[2]).intValue();
+            int updated = JPA.em().createQuery("update Post p set p.commentCount = :count, p.lastCommentAt = :last where p.id = :id and p.commentCount = :old")
+                .setParameter("count", count)
+                .setParameter("last", row[3])
+                .setParameter("id", id)
+                .setParameter("old", row[1])
+                .executeUpdate();
+
+            if(updated > 0) {
+                Transactions.afterCommit(new Runnable() {
+                    public void run() {
+                        HotPosts.recounted(id, count);
+                    }
+                });
+            }
+            repaired += updated;
+        }
+        return repaired;
+    }
+
 
     /**
      * Finds the last post entered before this one. These are not grouped by a specific
@@ -219,28 +290,35 @@ public class Post extends Model {
     }
 
     /**
-     * Returns a list of all posts containing a specific tag.
+     * Returns one page of the posts matching a tag query, newest first. The query
+     * is answered by the in-memory TagIndex, and only the posts on the page are
+     * loaded from the database.
      * 
-     * @param tag   The tag to search for
-     * @return      A list of posts which contain the tag
+     * @param all       Tags the posts must all have, if any
+     * @param any       Tags of which the posts must have at least one, if any
+     * @param none      Tags the posts must not have, if any
+     * @param before    The cursor of the page to return, or null for the first page
+     * @param size      The number of posts per page
+     * @return          The page of posts
      */
-    public static List<Post> findTaggedWith(String tag) {
-        return Post.find(
-            "select distinct p from Post p join p.tags as t where t.name = ?",
-            tag
-        ).fetch();
-    }
-
-    /**
-     * Returns a list of all posts containing several specified tags
-     * 
-     * @param tags  The tags to search for
-     * @return      A list of posts that have the tags
-     */
-    public static List<Post> findTaggedWith(String... tags) {
-        return Post.find(
-            "select distinct p.id from Post p join p.tags as t where t.name in (:tags) group by p.id having count(t.id) = :size"
-        ).bind("tags", tags).bind("size", tags.length).fetch();
+    public static KeysetPage<Post> findTaggedWith(String[] all, String[] any, String[] none, String before, int size) {
+        BitSet matches = TagIndex.query(all, any, none);
+
+        //Fetch one extra ID to know whether there's another page
+        List<Long> ids = TagIndex.newest(matches, KeysetPage.parseId(before), size + 1);
+        String next = null;
+        if(ids.size() > size) {
+            ids = ids.subList(0, size);
+            next = String.valueOf(ids.get(size - 1));
+        }
+
+        List<Post> posts = new ArrayList<Post>();
+        if(!ids.isEmpty()) {
+            List<Post> loaded = Post.find("id in (?1) order by id desc", ids).fetch();
+            posts.addAll(loaded);
+        }
+
+        return new KeysetPage<Post>(posts, next);
     }
 
     /**
@@ -255,6 +333,122 @@ public class Post extends Model {
             ).fetch();
     }
 
+    /**
+     * Keeps the tag index up to date whenever a post is saved, and the hot posts
+     * and reviews of the day once it's committed.
+     */
+    @PostPersist
+    @PostUpdate
+    void updateTagIndex() {
+        indexTags();
+
+        final Post post = this;
+        Transactions.afterCommit(new Runnable() {
+            public void run() {
+                HotPosts.put(post);
+                FeaturedReviews.reviewed(post.restaurant == null ? null : post.restaurant.id, post.id);
+            }
+        });
+    }
+
+    /**
+     * Updates the tag index, and through it the tag cloud, with the post's tags.
+     * Must be called after saving a post whose tags were edited: Post isn't
+     * versioned, so changing only its tags doesn't make Hibernate update the post
+     * itself, and @PostUpdate isn't fired. If the tags were never loaded, they
+     * can't have changed, so there's nothing to update.
+     */
+    public void indexTags() {
+        if(tags == null || !org.hibernate.Hibernate.isInitialized(tags))
+            return;
+
+        Set<String> names = new HashSet<String>();
+        for(Tag tag : tags)
+            names.add(tag.name);
+        TagIndex.put(id, names);
+    }
+
+    /**
+     * Removes the post from the tag index when it is deleted, and from the hot
+     * posts and reviews of the day once the delete is committed
+     */
+    @PostRemove
+    void removeFromTagIndex() {
+        final Long id = this.id;
+        TagIndex.delete(id);
+        Transactions.afterCommit(new Runnable() {
+            public void run() {
+                HotPosts.delete(id);
+                FeaturedReviews.reviewed(null, id);
+            }
+        });
+    }
+
+    /**
+     * Returns one page of a user's posts, newest first, using keyset pagination.
+     * Each page costs one range scan of the (author, postedAt, id) index, no matter
+     * how deep it is.
+     *
+     * @param author    The user who wrote the posts
+     * @param after     The cursor of the page to return, or null for the first page
+     * @param size      The number of posts per page
+     * @return          The page of posts
+     */
+    public static KeysetPage<Post> findByAuthor(User author, String after, int size) {
+        long[] key = KeysetPage.parseTimeAndId(after);
+        List<Post> posts;
+
+        if(key == null)
+            posts = Post.find("author = ?1 order by postedAt desc, id desc", author).fetch(size + 1);
+        else
+            posts = Post.find("author = ?1 and (postedAt < ?2 or (postedAt = ?2 and id < ?3)) order by postedAt desc, id desc",
+                author, new Date(key[0]), key[1]).fetch(size + 1);
+
+        //We fetched one extra post to know whether there's another page
+        String next = null;
+        if(posts.size() > size) {
+            posts = new ArrayList<Post>(posts.subList(0, size));
+            Post last = posts.get(size - 1);
+            next = KeysetPage.cursor(last.postedAt, last.id);
+        }
+
+        return new KeysetPage<Post>(posts, next);
+    }
+
+    /**
+     * Lists a restaurant's reviews, newest first, one page at a time. Only the
+     * fields shown in the list and an excerpt of the content are loaded, so the
+     * cost of a page doesn't depend on how many or how long the reviews are.
+     * 
+     * @param restaurantId  The ID of the restaurant
+     * @param after         Cursor of the last review of the previous page, or null
+     *                      for the first page
+     * @param size          The number of reviews per page
+     * @return              The page of reviews
+     */
+    public static KeysetPage<ReviewSummary> findByRestaurant(Long restaurantId, String after, int size) {
+        String projection = "select new models.ReviewSummary(p.id, p.title, substring(p.content, 1, " + (ReviewSummary.EXCERPT_LENGTH + 1) + "), p.postedAt, p.rating, p.likecount, a.id, a.firstname, a.lastname)"
+            + " from Post p join p.author a where p.restaurant.id = ?1";
+        long[] key = KeysetPage.parseTimeAndId(after);
+        List<ReviewSummary> reviews;
+
+        if(key == null)
+            reviews = Post.find(projection + " order by p.postedAt desc, p.id desc", restaurantId).fetch(size + 1);
+        else
+            reviews = Post.find(projection + " and (p.postedAt < ?2 or (p.postedAt = ?2 and p.id < ?3)) order by p.postedAt desc, p.id desc",
+                restaurantId, new Date(key[0]), key[1]).fetch(size + 1);
+
+        //We fetched one extra review to know whether there's another page
+        String next = null;
+        if(reviews.size() > size) {
+            reviews = new ArrayList<ReviewSummary>(reviews.subList(0, size));
+            ReviewSummary last = reviews.get(size - 1);
+            next = KeysetPage.cursor(last.postedAt, last.id);
+        }
+
+        return new KeysetPage<ReviewSummary>(reviews, next);
+    }
+
     /**
      * Returns the string representation of the post, in this case, the title
      * 
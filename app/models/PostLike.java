@@ -0,0 +1,42 @@
+/******************************************************************************
+ * PostLike.java
+ * 
+ * Records that a user liked a post, so every user can like a post only once.
+ * The post's like count itself is kept on the post, and updated in batches by
+ * LikeCounters.
+ * 
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+import javax.persistence.*;
+
+import play.db.jpa.*;
+import play.data.validation.*;
+
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"user_id", "post_id"}))
+public class PostLike extends Model {
+
+    @ManyToOne
+    @Required
+    public User user;           //User who liked the post
+
+    @ManyToOne
+    @Required
+    public Post post;           //Post which was liked
+
+    @Required
+    public Date likedAt;        //Date liked
+
+    /**
+     * @param user  The user who liked the post
+     * @param post  The post they liked
+     */
+    public PostLike(User user, Post post) {
+        this.user = user;
+        this.post = post;
+        this.likedAt = new Date();
+    }
+}
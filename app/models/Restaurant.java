@@ -3,13 +3,16 @@ package models;
 import java.util.*;
 import javax.persistence.*;
 
+import play.*;
 import play.data.binding.*;
 import play.data.validation.*;
 import play.db.jpa.*;
 import play.db.jpa.Blob;
+import play.exceptions.*;
 
 
 @Entity
+@org.hibernate.annotations.Entity(dynamicUpdate = true)	//Never write back the review aggregates, which are only changed by bulk updates
 public class Restaurant extends Model implements Comparable<Restaurant> {
 
     @Required
@@ -35,7 +38,23 @@ public class Restaurant extends Model implements Comparable<Restaurant> {
 	public String aboutUs;
 	public int rating;
 
+	//Review aggregates, maintained incrementally by reviewChanged()
+	public int reviewCount;		//Number of reviews, rated or not
+	public int ratingSum;		//Sum of the ratings of the rated reviews
+	public int stars1;		//Number of reviews rated 1 star
+	public int stars2;
+	public int stars3;
+	public int stars4;
+	public int stars5;
+
+	@org.hibernate.annotations.Index(name = "restaurant_score")
+	public double score;		//Bayesian average rating, used to rank restaurants
+
+	@Column(unique = true)
+	public String lookupKey;	//Normalized (name, city, state) key, kept in step on every save so no other server creates the same restaurant
+
 	public Blob profilepic;
+	public String profilepicHash;	//SHA-256 of the profile picture, used to version its URL
 
 	@OneToMany(mappedBy="restaurant", cascade=CascadeType.ALL)
 	public List<Post> reviews;
@@ -107,12 +126,362 @@ public class Restaurant extends Model implements Comparable<Restaurant> {
 	}
 
 	public static Restaurant findOrCreateByName(String name, String city) {
-		Restaurant restaurant = Restaurant.find("select r from Restaurant r where r.name = ?1 and r.city = ?2", name, city).first();
-		if(restaurant == null) {
-			restaurant = new Restaurant(name, city);
+		return findOrCreate(name, city, null, city, null);
+	}
+
+	/* Index from normalized (name, city, state) keys to IDs */
+	private static final NaturalKeyIndex keys = new NaturalKeyIndex(64);
+
+	/**
+	 * Finds a restaurant by name, and optionally city and state. Names and cities
+	 * are compared ignoring case and surrounding spaces. Repeat lookups are
+	 * answered from memory, without a query.
+	 *
+	 * @param name	The restaurant's name
+	 * @param city	The restaurant's city, or null to match any city
+	 * @param state	The restaurant's state, or null to match any state. Ignored if city is null.
+	 * @return	The restaurant, or null if there's none
+	 */
+	public static Restaurant findByKey(String name, String city, State state) {
+		Long id = keys.get(lookupKey(name, city, state));
+		if(id == null)
+			id = findId(name, city, state);
+		return id == null ? null : JPA.em().getReference(Restaurant.class, id);
+	}
+
+	/**
+	 * Finds a restaurant like findByKey(), creating it if there's none. Concurrent
+	 * requests for the same new restaurant wait for each other, so only one of
+	 * them creates it.
+	 *
+	 * @param name		The restaurant's name
+	 * @param city		The restaurant's city, or null to match any city
+	 * @param state		The restaurant's state, or null to match any state
+	 * @param newCity	The city to create the restaurant in
+	 * @param newState	The state to create the restaurant in
+	 * @return		The restaurant found or created
+	 */
+	public static Restaurant findOrCreate(String name, String city, State state, String newCity, State newState) {
+		String key = lookupKey(name, city, state);
+		Long id = keys.get(key);
+		if(id == null) {
+			//Every key of a restaurant contains its name, so locking on the name is enough
+			synchronized(keys.lockFor(NaturalKeyIndex.normalize(name))) {
+				id = keys.get(key);
+				if(id == null)
+					id = findId(name, city, state);
+				if(id == null)
+					id = create(name, newCity, newState);
+			}
+		}
+
+		return JPA.em().getReference(Restaurant.class, id);
+	}
+
+	/**
+	 * Loads the keys of all restaurants into the index
+	 */
+	public static void loadKeys() {
+		List<Object[]> rows = Restaurant.find("select r.id, r.name, r.city, s.id from Restaurant r left join r.state s").fetch();
+
+		keys.clear();
+		for(Object[] row : rows)
+			keys.put((Long)row[0], keysOf((String)row[1], (String)row[2], (Long)row[3]));
+	}
+
+	/**
+	 * Returns the key a lookup by name, city and state is listed under
+	 */
+	private static String lookupKey(String name, String city, State state) {
+		if(city == null)
+			return NaturalKeyIndex.key(name);
+		if(state == null)
+			return NaturalKeyIndex.key(name, city);
+		return NaturalKeyIndex.key(name, city, state.id);
+	}
+
+	/**
+	 * Returns every key a restaurant is listed under
+	 */
+	private static String[] keysOf(String name, String city, Long stateId) {
+		return new String[] {
+			NaturalKeyIndex.key(name),
+			NaturalKeyIndex.key(name, city),
+			NaturalKeyIndex.key(name, city, stateId)
+		};
+	}
+
+	/**
+	 * Looks a restaurant up in the database, and adds it to the index if it's found
+	 */
+	private static Long findId(String name, String city, State state) {
+		String query = "select r.id, r.name, r.city, s.id from Restaurant r left join r.state s where lower(trim(r.name)) = ?1";
+		List<Object> params = new ArrayList<Object>();
+		params.add(NaturalKeyIndex.normalize(name));
+		if(city != null) {
+			query += " and lower(trim(r.city)) = ?2";
+			params.add(NaturalKeyIndex.normalize(city));
+			if(state != null) {
+				query += " and s.id = ?3";
+				params.add(state.id);
+			}
+		}
+
+		Object[] row = Restaurant.find(query + " order by r.id", params.toArray()).first();
+		if(row == null)
+			return null;
+
+		keys.put((Long)row[0], keysOf((String)row[1], (String)row[2], (Long)row[3]));
+		return (Long)row[0];
+	}
+
+	/**
+	 * Creates a restaurant in the request's transaction. Requests on this server
+	 * find it in the index as soon as it's inserted. Should another server create
+	 * the same restaurant at the same time, the unique lookup key rejects this one
+	 * and the request is rolled back.
+	 */
+	private static Long create(String name, String city, State state) {
+		Restaurant restaurant = new Restaurant(name, city, state);
+		try {
 			restaurant.save();
 		}
-		return restaurant;
+		catch(PersistenceException e) {
+			if(!Transactions.isUniqueViolation(e))
+				throw e;
+			JPA.setRollbackOnly();
+			throw new UnexpectedException("Restaurant " + name + " was created by another server at the same time, please try again");
+		}
+		return restaurant.id;
+	}
+
+	/**
+	 * Tells whether another restaurant already has the same name, city and state,
+	 * which the unique lookup key wouldn't let this one be saved with. Should be
+	 * used to validate restaurants before saving them.
+	 *
+	 * @param restaurant	The restaurant, new or edited
+	 * @return		true if another restaurant has the same key
+	 */
+	public static boolean isTaken(Restaurant restaurant) {
+		//Don't let the query flush the edited restaurant, which would hit the unique key it's checking
+		List<Long> ids = JPA.em().createQuery("select r.id from Restaurant r where r.lookupKey = :key")
+			.setParameter("key", restaurant.key())
+			.setFlushMode(FlushModeType.COMMIT)
+			.getResultList();
+		for(Long id : ids) {
+			if(!id.equals(restaurant.id))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Fills in the lookup key of the restaurants saved before it existed.
+	 * Restaurants with the same name, city and state are merged into the oldest
+	 * one first, since the unique key wouldn't let them be saved again: their
+	 * reviews are moved to it, and the duplicates deleted. Should be followed by
+	 * rebuildAggregates() if any were merged.
+	 *
+	 * @return	The number of restaurants merged
+	 */
+	public static int backfillKeys() {
+		if(Restaurant.count("lookupKey is null") == 0)
+			return 0;
+
+		List<Object[]> rows = Restaurant.find("select r.id, r.name, r.city, s.id, r.lookupKey from Restaurant r left join r.state s order by r.id").fetch();
+
+		Map<String, Long> kept = new HashMap<String, Long>();
+		int merged = 0;
+		for(Object[] row : rows) {
+			Long id = (Long)row[0];
+			String key = NaturalKeyIndex.key(row[1], row[2], row[3]);
+			Long keep = kept.get(key);
+			if(keep == null) {
+				kept.put(key, id);
+				if(!key.equals(row[4])) {
+					JPA.em().createQuery("update Restaurant r set r.lookupKey = :key where r.id = :id")
+						.setParameter("key", key)
+						.setParameter("id", id)
+						.executeUpdate();
+				}
+				continue;
+			}
+
+			JPA.em().createQuery("update Post p set p.restaurant = :keep where p.restaurant.id = :id")
+				.setParameter("keep", JPA.em().getReference(Restaurant.class, keep))
+				.setParameter("id", id)
+				.executeUpdate();
+			JPA.em().createQuery("delete from Restaurant r where r.id = :id")
+				.setParameter("id", id)
+				.executeUpdate();
+			merged++;
+		}
+
+		if(merged > 0)
+			Logger.warn("Merged %d duplicate restaurants into the oldest restaurant with the same name, city and state", merged);
+		return merged;
+	}
+
+	/**
+	 * Returns the unique lookup key of this restaurant
+	 */
+	private String key() {
+		return NaturalKeyIndex.key(this.name, this.city, this.state == null ? null : this.state.id);
+	}
+
+	//Score new restaurants straight away, so they're ranked before the next RestaurantScores run
+	@PrePersist
+	void prepareInsert() {
+		updateLookupKey();
+		double rated = this.stars1 + this.stars2 + this.stars3 + this.stars4 + this.stars5;
+		this.score = PRIOR_WEIGHT + rated > 0 ? (PRIOR_WEIGHT * meanRating + this.ratingSum) / (PRIOR_WEIGHT + rated) : meanRating;
+	}
+
+	//Keep the unique lookup key in step with the name, city and state, so a renamed restaurant frees its old key
+	@PreUpdate
+	void updateLookupKey() {
+		this.lookupKey = key();
+	}
+
+	//Keep the search index, autocomplete and lookup keys up to date whenever a restaurant is created, edited or deleted
+	@PostPersist
+	@PostUpdate
+	void updateSearchIndex() {
+		final Long id = this.id;
+		keys.put(id, keysOf(this.name, this.city, this.state == null ? null : this.state.id));
+		//Other requests find the restaurant by its keys as soon as it's inserted, so forget them if it's rolled back
+		Transactions.afterRollback(new Runnable() {
+			public void run() {
+				keys.remove(id);
+			}
+		});
+		RestaurantSearchIndex.put(this);
+		RestaurantCompletions.put(this);
+		RestaurantLeaderboard.put(this);
+	}
+
+	@PostRemove
+	void removeFromSearchIndex() {
+		RestaurantSearchIndex.delete(this.id);
+		RestaurantCompletions.delete(this.id);
+		RestaurantLeaderboard.delete(this.id);
+		keys.remove(this.id);
+	}
+
+	/* Number of imaginary average reviews every restaurant starts with */
+	public static final double PRIOR_WEIGHT = Double.parseDouble(Play.configuration.getProperty("ratings.prior.weight", "5"));
+
+	/* Average rating of all rated reviews on the site, refreshed by the RestaurantScores job */
+	public static volatile double meanRating = 3.0;
+
+	/**
+	 * Must be called whenever a review is written about a restaurant, moved from
+	 * one restaurant to another, re-rated, or deleted, so the review aggregates
+	 * and the data derived from them stay up to date.
+	 * The aggregates are changed with relative bulk updates, so concurrent reviews
+	 * of the same restaurant can't overwrite each other's changes.
+	 *
+	 * @param from		The restaurant the review used to be about, or null if it's new
+	 * @param fromRating	The rating the review used to have, 0 if none
+	 * @param to		The restaurant the review is now about, or null if it was deleted
+	 * @param toRating	The rating the review now has, 0 if none
+	 */
+	public static void reviewChanged(Restaurant from, int fromRating, Restaurant to, int toRating) {
+		if(from == to && fromRating == toRating)
+			return;
+
+		if(from != null)
+			applyReview(from.id, from == to ? 0 : -1, fromRating, -1);
+		if(to != null)
+			applyReview(to.id, from == to ? 0 : 1, toRating, 1);
+
+		if(from != to && from != null)
+			RestaurantCompletions.reviewCountChanged(from.id, -1);
+		if(from != to && to != null)
+			RestaurantCompletions.reviewCountChanged(to.id, 1);
+	}
+
+	/**
+	 * Adds or removes one review's contribution to a restaurant's aggregates, and
+	 * recomputes its score
+	 *
+	 * @param id		The restaurant's ID
+	 * @param reviews	The change in the number of reviews
+	 * @param rating	The review's rating, 0 if none
+	 * @param sign		1 to add the rating, -1 to remove it
+	 */
+	private static void applyReview(Long id, int reviews, int rating, int sign) {
+		boolean rated = rating >= 1 && rating <= 5;
+		String stars = rated ? ", r.stars" + rating + " = r.stars" + rating + " + :sign" : "";
+
+		Query update = JPA.em().createQuery("update Restaurant r set r.reviewCount = r.reviewCount + :reviews, r.ratingSum = r.ratingSum + :rating" + stars + " where r.id = :id")
+			.setParameter("reviews", reviews)
+			.setParameter("rating", rated ? sign * rating : 0)
+			.setParameter("id", id);
+		if(rated)
+			update.setParameter("sign", sign);
+		update.executeUpdate();
+
+		rescore(id);
+	}
+
+	/**
+	 * Recomputes the Bayesian average of one restaurant, or of all of them, and
+	 * updates the leaderboard with the new scores
+	 *
+	 * @param id	The restaurant's ID, or null for every restaurant
+	 * @return	The number of restaurants rescored
+	 */
+	public static int rescore(Long id) {
+		Query update = JPA.em().createQuery("update Restaurant r set r.score = (:weight * :mean + r.ratingSum) / (:weight + r.stars1 + r.stars2 + r.stars3 + r.stars4 + r.stars5)"
+			+ (id == null ? "" : " where r.id = :id"))
+			.setParameter("weight", PRIOR_WEIGHT)
+			.setParameter("mean", meanRating);
+		if(id != null)
+			update.setParameter("id", id);
+		int rescored = update.executeUpdate();
+
+		if(id == null)
+			RestaurantLeaderboard.load();
+		else
+			RestaurantLeaderboard.rescored(id);
+		return rescored;
+	}
+
+	/**
+	 * Recomputes the review aggregates of every restaurant from its reviews.
+	 * This is expensive, so it's only used to fill them in the first time.
+	 */
+	public static void rebuildAggregates() {
+		JPA.em().createQuery("update Restaurant r set r.reviewCount = 0, r.ratingSum = 0, r.stars1 = 0, r.stars2 = 0, r.stars3 = 0, r.stars4 = 0, r.stars5 = 0").executeUpdate();
+
+		List<Object[]> rows = Post.find("select p.restaurant.id, p.rating, count(p.id) from Post p where p.restaurant is not null group by p.restaurant.id, p.rating").fetch();
+		for(Object[] row : rows) {
+			int rating = (Integer)row[1];
+			boolean rated = rating >= 1 && rating <= 5;
+			int count = ((Number)row[2]).intValue();
+
+			JPA.em().createQuery("update Restaurant r set r.reviewCount = r.reviewCount + :count, r.ratingSum = r.ratingSum + :sum"
+				+ (rated ? ", r.stars" + rating + " = r.stars" + rating + " + :count" : "") + " where r.id = :id")
+				.setParameter("count", count)
+				.setParameter("sum", rated ? rating * count : 0)
+				.setParameter("id", row[0])
+				.executeUpdate();
+		}
+
+		refreshMeanRating();
+		rescore(null);
+	}
+
+	/**
+	 * Recomputes the average rating of all rated reviews on the site, which every
+	 * restaurant's score is pulled towards
+	 */
+	public static void refreshMeanRating() {
+		Object[] totals = Restaurant.find("select sum(r.ratingSum), sum(r.stars1 + r.stars2 + r.stars3 + r.stars4 + r.stars5) from Restaurant r").first();
+		if(totals != null && totals[1] != null && ((Number)totals[1]).longValue() > 0)
+			meanRating = ((Number)totals[0]).doubleValue() / ((Number)totals[1]).doubleValue();
 	}
 
 	public int compareTo(Restaurant otherRestaurant) {
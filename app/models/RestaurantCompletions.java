@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * RestaurantCompletions.java
+ *
+ * In-memory prefix trie used to autocomplete restaurant names.
+ *
+ * The jQuery UI autocomplete on the profile page asks for completions on every
+ * keystroke, so they are served without touching the database. Each restaurant
+ * is inserted under every word of its name, so typing "se" finds "Per Se". Its
+ * display string ("Name, City, State") is built once, when it is inserted.
+ *
+ * Every node of the trie keeps the best TOP_K restaurants found anywhere below
+ * it, ranked by number of reviews, so a lookup only walks down the characters
+ * typed and copies the list it finds there.
+ *
+ * When a restaurant gains reviews, it is offered again to every node on its
+ * paths. When it loses reviews, is renamed or is deleted, the nodes on its paths
+ * which were listing it repair their lists, deepest first. A node's list is the
+ * best of the restaurants ending there and of its children's lists, so it is
+ * repaired from those alone, without walking everything below it.
+ *
+ * The trie is loaded at startup by the Bootstrap job. The Restaurant model keeps
+ * it up to date when restaurants are saved or deleted, or their reviews change.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+public class RestaurantCompletions {
+
+    /* Number of completions kept at each node */
+    public static final int TOP_K = 10;
+
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private static Node root = new Node();
+    private static final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+    /**
+     * (Re)loads the whole trie from the database
+     */
+    public static void load() {
+        List<Object[]> rows = Restaurant.find(
+            "select r.id, r.name, r.city, s.name, count(p.id) from Restaurant r left join r.state s left join r.reviews p group by r.id, r.name, r.city, s.name"
+        ).fetch();
+
+        lock.writeLock().lock();
+        try {
+            root = new Node();
+            entries.clear();
+
+            for(Object[] row : rows) {
+                Entry entry = new Entry((Long)row[0], (String)row[1], display((String)row[1], (String)row[2], (String)row[3]), ((Number)row[4]).intValue());
+                insert(entry);
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the display strings of the restaurants with a word starting with
+     * what the user typed, most reviewed first
+     *
+     * @param term      What the user has typed so far
+     * @param amount    The maximum number of completions to return
+     * @return          "Name, City, State" strings of the restaurants found
+     */
+    public static List<String> complete(String term, int amount) {
+        List<String> result = new ArrayList<String>();
+        if(term == null || term.trim().length() == 0)
+            return result;
+
+        String prefix = term.trim().toLowerCase();
+
+        lock.readLock().lock();
+        try {
+            Node node = root;
+            for(int i = 0; i < prefix.length() && node != null; i++)
+                node = node.children.get(prefix.charAt(i));
+
+            if(node != null) {
+                for(int i = 0; i < node.top.size() && i < amount; i++)
+                    result.add(node.top.get(i).display);
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds a restaurant to the trie, or updates its name and display string if it
+     * was already there. Its review count is kept.
+     *
+     * @param restaurant    The restaurant, which must have been saved
+     */
+    public static void put(Restaurant restaurant) {
+        String stateName = restaurant.state == null ? null : restaurant.state.name;
+        String display = display(restaurant.name, restaurant.city, stateName);
+
+        lock.writeLock().lock();
+        try {
+            Entry old = entries.get(restaurant.id);
+            if(old != null && old.name.equals(restaurant.name == null ? "" : restaurant.name) && old.display.equals(display))
+                return;
+
+            int reviews = 0;
+            if(old != null) {
+                reviews = old.reviews;
+                remove(old);
+            }
+            insert(new Entry(restaurant.id, restaurant.name, display, reviews));
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a restaurant from the trie
+     *
+     * @param id    The ID of the restaurant
+     */
+    public static void delete(Long id) {
+        lock.writeLock().lock();
+        try {
+            Entry old = entries.get(id);
+            if(old != null)
+                remove(old);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Changes the number of reviews of a restaurant, and reranks it
+     *
+     * @param id    The ID of the restaurant
+     * @param delta The number of reviews added, negative if reviews were removed
+     */
+    public static void reviewCountChanged(Long id, int delta) {
+        lock.writeLock().lock();
+        try {
+            Entry entry = entries.get(id);
+            if(entry == null || delta == 0)
+                return;
+
+            entry.reviews = Math.max(0, entry.reviews + delta);
+            String name = entry.name.toLowerCase();
+            for(int start : wordStarts(name)) {
+                List<Node> path = path(name, start);
+                if(delta > 0) {
+                    for(Node node : path)
+                        offer(node, entry);
+                }
+                else {
+                    repair(path, entry);
+                }
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Builds the string shown in the autocomplete list. City and state are only
+     * added if they're there, otherwise autocomplete would show ", null, null"
+     */
+    private static String display(String name, String city, String state) {
+        String display = name == null ? "" : name;
+        if(city != null && city.length() > 0) {
+            display += ", " + city;
+            if(state != null && state.length() > 0)
+                display += ", " + state;
+        }
+        return display;
+    }
+
+    /**
+     * Inserts a restaurant under every word of its name. Must be called with the
+     * write lock held.
+     */
+    private static void insert(Entry entry) {
+        entries.put(entry.id, entry);
+
+        String name = entry.name.toLowerCase();
+        for(int start : wordStarts(name)) {
+            Node node = root;
+            for(int i = start; i < name.length(); i++) {
+                Node child = node.children.get(name.charAt(i));
+                if(child == null) {
+                    child = new Node();
+                    node.children.put(name.charAt(i), child);
+                }
+                node = child;
+                offer(node, entry);
+            }
+            node.ending.add(entry);
+        }
+    }
+
+    /**
+     * Removes a restaurant from every node it was in. Must be called with the write
+     * lock held.
+     */
+    private static void remove(Entry entry) {
+        entries.remove(entry.id);
+
+        String name = entry.name.toLowerCase();
+        for(int start : wordStarts(name)) {
+            List<Node> path = path(name, start);
+            if(path.size() == name.length() - start)
+                path.get(path.size() - 1).ending.remove(entry);
+
+            repair(path, entry);
+        }
+    }
+
+    /**
+     * Returns the nodes on the path of one word of a name, from the root down.
+     * Stops early if the path isn't complete.
+     */
+    private static List<Node> path(String name, int start) {
+        List<Node> path = new ArrayList<Node>();
+        Node node = root;
+        for(int i = start; i < name.length(); i++) {
+            node = node.children.get(name.charAt(i));
+            if(node == null)
+                break;
+            path.add(node);
+        }
+        return path;
+    }
+
+    /**
+     * Repairs the top lists on a path which were listing a restaurant that lost
+     * reviews or went away, deepest first, since each list is made from the
+     * lists of the node's children
+     */
+    private static void repair(List<Node> path, Entry entry) {
+        for(int i = path.size() - 1; i >= 0; i--) {
+            Node node = path.get(i);
+            if(node.top.contains(entry))
+                repair(node);
+        }
+    }
+
+    /**
+     * Puts a restaurant into a node's top list if it ranks high enough
+     */
+    private static void offer(Node node, Entry entry) {
+        node.top.remove(entry);
+        if(node.top.size() >= TOP_K && RANKING.compare(entry, node.top.get(node.top.size() - 1)) > 0)
+            return;
+
+        int index = Collections.binarySearch(node.top, entry, RANKING);
+        node.top.add(index < 0 ? -index - 1 : index, entry);
+        if(node.top.size() > TOP_K)
+            node.top.remove(node.top.size() - 1);
+    }
+
+    /**
+     * Rebuilds a node's top list from the restaurants ending there and the top
+     * lists of its children, which must be up to date. The best restaurants below
+     * a node are always among those.
+     */
+    private static void repair(Node node) {
+        Set<Entry> candidates = new HashSet<Entry>(node.ending);
+        for(Node child : node.children.values())
+            candidates.addAll(child.top);
+
+        List<Entry> sorted = new ArrayList<Entry>(candidates);
+        Collections.sort(sorted, RANKING);
+        node.top = new ArrayList<Entry>(sorted.subList(0, Math.min(TOP_K, sorted.size())));
+    }
+
+    /**
+     * Returns the positions at which the words of a name start
+     */
+    private static List<Integer> wordStarts(String name) {
+        List<Integer> starts = new ArrayList<Integer>();
+        for(int i = 0; i < name.length(); i++) {
+            if(!Character.isWhitespace(name.charAt(i)) && (i == 0 || Character.isWhitespace(name.charAt(i - 1))))
+                starts.add(i);
+        }
+        return starts;
+    }
+
+    /* Most reviewed first, then alphabetically */
+    private static final Comparator<Entry> RANKING = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            if(a.reviews != b.reviews)
+                return b.reviews - a.reviews;
+            int byDisplay = a.display.compareTo(b.display);
+            return byDisplay != 0 ? byDisplay : a.id.compareTo(b.id);
+        }
+    };
+
+    private static class Entry {
+        final Long id;
+        final String name;
+        final String display;       //"Name, City, State"
+        int reviews;                //Number of reviews, used for ranking
+
+        Entry(Long id, String name, String display, int reviews) {
+            this.id = id;
+            this.name = name == null ? "" : name;
+            this.display = display;
+            this.reviews = reviews;
+        }
+    }
+
+    private static class Node {
+        final Map<Character, Node> children = new HashMap<Character, Node>();
+        final List<Entry> ending = new ArrayList<Entry>();     //Restaurants whose name ends here
+        List<Entry> top = new ArrayList<Entry>();               //Best restaurants below this node
+    }
+}
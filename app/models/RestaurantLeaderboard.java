@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * RestaurantLeaderboard.java
+ *
+ * In-memory leaderboard of the best scored restaurants, overall and per city.
+ *
+ * The sidebar of the home page lists the best restaurants on every request.
+ * Rather than sorting the restaurant table each time, every board keeps its top
+ * CAPACITY restaurants in a skip list ordered by score, which readers walk
+ * without taking any lock. Writers only lock the restaurant, through a striped
+ * lock, and the boards it is on, so updates to restaurants in different cities
+ * don't wait for each other while concurrent updates of the same restaurant
+ * can't both replace its old entry and list it twice.
+ *
+ * Below its top, each board keeps a backlog of up to BACKLOG runners-up, so when
+ * a restaurant drops off a board, the next best one takes its place without
+ * looking at every restaurant. Runners-up which don't fit in the backlog are
+ * forgotten, and the best of them is remembered as a bound: restaurants which
+ * don't rank above it can't go into the backlog, since a forgotten one might be
+ * better. Only once the backlog is used up is the board refilled from the last
+ * known scores of all its restaurants, which are remembered for that.
+ *
+ * The leaderboard is loaded at startup by the Bootstrap job, and reloaded every
+ * time all restaurants are rescored. The Restaurant model keeps it up to date
+ * whenever a restaurant is rescored, renamed, moved or deleted.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import play.*;
+
+public class RestaurantLeaderboard {
+
+    /* Number of restaurants kept on each board */
+    public static final int CAPACITY = Integer.parseInt(Play.configuration.getProperty("leaderboard.size", "50"));
+
+    /* Number of runners-up kept below the top of each board */
+    public static final int BACKLOG = Integer.parseInt(Play.configuration.getProperty("leaderboard.backlog", String.valueOf(CAPACITY)));
+
+    private static final Board global = new Board(null);
+    private static final ConcurrentHashMap<String, Board> cities = new ConcurrentHashMap<String, Board>();
+    private static final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+
+    //Held while replacing a restaurant's entry, always before the locks of the boards
+    private static final Object[] locks = new Object[64];
+
+    static {
+        for(int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    /**
+     * (Re)loads every board from the database
+     */
+    public static void load() {
+        List<Object[]> rows = Restaurant.find("select r.id, r.name, r.city, r.score from Restaurant r").fetch();
+
+        entries.clear();
+        for(Object[] row : rows) {
+            Entry entry = new Entry((Long)row[0], (String)row[1], (String)row[2], ((Number)row[3]).doubleValue());
+            entries.put(entry.id, entry);
+        }
+
+        Map<String, List<Entry>> byCity = new HashMap<String, List<Entry>>();
+        for(Entry entry : entries.values()) {
+            List<Entry> inCity = byCity.get(entry.cityKey);
+            if(inCity == null) {
+                inCity = new ArrayList<Entry>();
+                byCity.put(entry.cityKey, inCity);
+            }
+            inCity.add(entry);
+        }
+
+        global.refill(entries.values());
+        for(String cityKey : cities.keySet()) {
+            if(!byCity.containsKey(cityKey))
+                cities.remove(cityKey);
+        }
+        for(Map.Entry<String, List<Entry>> city : byCity.entrySet())
+            board(city.getKey()).refill(city.getValue());
+    }
+
+    /**
+     * Returns the best scored restaurants, best first
+     *
+     * @param amount    The maximum number of restaurants to return, at most CAPACITY
+     * @return          The restaurants
+     */
+    public static List<Entry> top(int amount) {
+        return global.top(amount);
+    }
+
+    /**
+     * Returns the best scored restaurants of a city, best first
+     *
+     * @param city      The city, in any case
+     * @param amount    The maximum number of restaurants to return, at most CAPACITY
+     * @return          The restaurants
+     */
+    public static List<Entry> topInCity(String city, int amount) {
+        Board board = cities.get(cityKey(city));
+        return board == null ? new ArrayList<Entry>() : board.top(amount);
+    }
+
+    /**
+     * Reloads the score of a restaurant after it was rescored
+     *
+     * @param id    The ID of the restaurant
+     */
+    public static void rescored(Long id) {
+        Object[] row = Restaurant.find("select r.name, r.city, r.score from Restaurant r where r.id = ?1", id).first();
+        if(row == null)
+            delete(id);
+        else
+            update(new Entry(id, (String)row[0], (String)row[1], ((Number)row[2]).doubleValue()));
+    }
+
+    /**
+     * Adds a restaurant to the leaderboard, or updates its name and city if it was
+     * already there. Its last known score is kept, since the entity may have been
+     * loaded before it was rescored.
+     *
+     * @param restaurant    The restaurant, which must have been saved
+     */
+    public static void put(Restaurant restaurant) {
+        synchronized(lockFor(restaurant.id)) {
+            Entry old = entries.get(restaurant.id);
+            double score = old == null ? restaurant.score : old.score;
+            if(old != null && equal(old.name, restaurant.name) && equal(old.city, restaurant.city))
+                return;
+
+            update(new Entry(restaurant.id, restaurant.name, restaurant.city, score));
+        }
+    }
+
+    /**
+     * Removes a restaurant from the leaderboard
+     *
+     * @param id    The ID of the restaurant
+     */
+    public static void delete(Long id) {
+        synchronized(lockFor(id)) {
+            Entry old = entries.remove(id);
+            if(old != null) {
+                global.remove(old);
+                Board board = cities.get(old.cityKey);
+                if(board != null)
+                    board.remove(old);
+            }
+        }
+    }
+
+    /**
+     * Replaces the entry of a restaurant on every board it belongs to
+     */
+    private static void update(Entry entry) {
+        synchronized(lockFor(entry.id)) {
+            Entry old = entries.put(entry.id, entry);
+
+            global.replace(old, entry);
+            if(old != null && !old.cityKey.equals(entry.cityKey)) {
+                Board oldCity = cities.get(old.cityKey);
+                if(oldCity != null)
+                    oldCity.remove(old);
+                old = null;
+            }
+            board(entry.cityKey).replace(old, entry);
+        }
+    }
+
+    private static Object lockFor(Long id) {
+        return locks[(id.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    /**
+     * Returns the board of a city, creating it if needed
+     */
+    private static Board board(String cityKey) {
+        Board board = cities.get(cityKey);
+        if(board == null) {
+            cities.putIfAbsent(cityKey, new Board(cityKey));
+            board = cities.get(cityKey);
+        }
+        return board;
+    }
+
+    private static String cityKey(String city) {
+        return city == null ? "" : city.trim().toLowerCase();
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /* Best score first, then lowest ID */
+    private static final Comparator<Entry> RANKING = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int byScore = Double.compare(b.score, a.score);
+            return byScore != 0 ? byScore : a.id.compareTo(b.id);
+        }
+    };
+
+    /**
+     * A restaurant on the leaderboard. Entries are immutable; a restaurant whose
+     * score changes gets a new one.
+     */
+    public static class Entry {
+        public final Long id;
+        public final String name;
+        public final String city;
+        public final double score;
+        final String cityKey;
+
+        Entry(Long id, String name, String city, double score) {
+            this.id = id;
+            this.name = name;
+            this.city = city;
+            this.score = score;
+            this.cityKey = cityKey(city);
+        }
+    }
+
+    /**
+     * The top CAPACITY restaurants of one board, and its runners-up. Reads are
+     * lock-free; writes are serialized per board.
+     */
+    private static class Board {
+        private final String cityKey;      //null for the global board
+        private final ConcurrentSkipListSet<Entry> top = new ConcurrentSkipListSet<Entry>(RANKING);
+        private final TreeSet<Entry> backlog = new TreeSet<Entry>(RANKING);
+        private Entry bound;                //Best runner-up left out of the backlog, null if none was
+
+        Board(String cityKey) {
+            this.cityKey = cityKey;
+        }
+
+        List<Entry> top(int amount) {
+            List<Entry> result = new ArrayList<Entry>();
+            for(Entry entry : top) {
+                if(result.size() >= amount)
+                    break;
+                result.add(entry);
+            }
+            return result;
+        }
+
+        /**
+         * Replaces a restaurant's old entry with its new one
+         *
+         * @param old       The old entry, or null if it wasn't on this board
+         * @param entry     The new entry
+         */
+        synchronized void replace(Entry old, Entry entry) {
+            if(old != null && !top.remove(old))
+                backlog.remove(old);
+
+            if(top.size() < CAPACITY || RANKING.compare(entry, top.last()) < 0) {
+                top.add(entry);
+                if(top.size() > CAPACITY)
+                    demote(top.pollLast());
+            }
+            else {
+                demote(entry);
+            }
+            promote();
+        }
+
+        synchronized void remove(Entry old) {
+            if(!top.remove(old))
+                backlog.remove(old);
+            promote();
+        }
+
+        /**
+         * Rebuilds the board from the last known entries of its restaurants. The
+         * new top is added before the rest is removed, so readers never see an
+         * empty board.
+         */
+        synchronized void refill(Collection<Entry> all) {
+            List<Entry> sorted = new ArrayList<Entry>(all);
+            Collections.sort(sorted, RANKING);
+            List<Entry> best = sorted.subList(0, Math.min(CAPACITY, sorted.size()));
+
+            TreeSet<Entry> keep = new TreeSet<Entry>(RANKING);
+            keep.addAll(best);
+
+            top.addAll(best);
+            for(Entry entry : top) {
+                if(!keep.contains(entry))
+                    top.remove(entry);
+            }
+
+            int end = Math.min(CAPACITY + BACKLOG, sorted.size());
+            backlog.clear();
+            backlog.addAll(sorted.subList(best.size(), end));
+            bound = end < sorted.size() ? sorted.get(end) : null;
+        }
+
+        /**
+         * Puts a restaurant which isn't in the top into the backlog, if it's known
+         * to rank above every restaurant left out of it
+         */
+        private void demote(Entry entry) {
+            if(bound != null && RANKING.compare(entry, bound) > 0)
+                return;
+
+            backlog.add(entry);
+            if(backlog.size() > BACKLOG)
+                bound = backlog.pollLast();
+        }
+
+        /**
+         * Fills the top from the backlog, or from every restaurant of the board
+         * once the backlog is used up and some were left out of it
+         */
+        private void promote() {
+            while(top.size() < CAPACITY && !backlog.isEmpty())
+                top.add(backlog.pollFirst());
+
+            if(top.size() < CAPACITY && bound != null)
+                refill(candidates());
+        }
+
+        /**
+         * Returns the last known entries of every restaurant of this board
+         */
+        private List<Entry> candidates() {
+            List<Entry> all = new ArrayList<Entry>();
+            for(Entry entry : entries.values()) {
+                if(cityKey == null || cityKey.equals(entry.cityKey))
+                    all.add(entry);
+            }
+            return all;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * RestaurantSearchIndex.java
+ *
+ * In-memory trigram index over restaurant names and cities.
+ *
+ * Searching with "like '%term%'" can't use a database index, so every search
+ * scanned the whole Restaurant table. Instead, every name and city is split into
+ * its trigrams (every run of three characters, lower cased), and for each
+ * trigram the index keeps the IDs of the restaurants containing it. A search for
+ * a term intersects the ID sets of the term's trigrams, starting with the
+ * smallest, then checks the few remaining candidates against the stored text.
+ * Terms shorter than three characters are checked against the stored text of
+ * every restaurant, which is still done in memory.
+ *
+ * The index only returns IDs. Callers should load the restaurants they need, a
+ * page at a time.
+ *
+ * The index is loaded at startup by the Bootstrap job, and the Restaurant model
+ * keeps it up to date whenever a restaurant is created, edited or deleted. The
+ * names and cities are passed on to the SpellingSuggester at the same time.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+public class RestaurantSearchIndex {
+
+    /* Fields which can be searched */
+    public static final int NAME = 0;
+    public static final int CITY = 1;
+
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //Lower cased name and city of every restaurant, by ID
+    private static final Map<Long, String[]> texts = new HashMap<Long, String[]>();
+
+    //Restaurant IDs by trigram, one map for each field
+    private static final List<Map<String, Set<Long>>> postings = Arrays.asList(
+        (Map<String, Set<Long>>)new HashMap<String, Set<Long>>(),
+        (Map<String, Set<Long>>)new HashMap<String, Set<Long>>()
+    );
+
+    /**
+     * (Re)loads the whole index from the Restaurant table
+     */
+    public static void load() {
+        List<Object[]> rows = Restaurant.find("select r.id, r.name, r.city from Restaurant r").fetch();
+
+        lock.writeLock().lock();
+        try {
+            texts.clear();
+            for(Map<String, Set<Long>> field : postings)
+                field.clear();
+            SpellingSuggester.clear();
+
+            for(Object[] row : rows)
+                add((Long)row[0], (String)row[1], (String)row[2]);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a restaurant to the index, or updates it if it was already there
+     *
+     * @param restaurant    The restaurant, which must have been saved
+     */
+    public static void put(Restaurant restaurant) {
+        lock.writeLock().lock();
+        try {
+            remove(restaurant.id);
+            add(restaurant.id, restaurant.name, restaurant.city);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a restaurant from the index
+     *
+     * @param id    The ID of the restaurant
+     */
+    public static void delete(Long id) {
+        lock.writeLock().lock();
+        try {
+            remove(id);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the restaurants whose name or city contains a term, ignoring case
+     *
+     * @param field NAME or CITY
+     * @param term  The text to search for
+     * @return      The IDs of the restaurants found, in ascending order
+     */
+    public static List<Long> search(int field, String term) {
+        String needle = term == null ? "" : normalize(term);
+        List<Long> result = new ArrayList<Long>();
+
+        lock.readLock().lock();
+        try {
+            Collection<Long> candidates;
+            if(needle.length() < 3) {
+                candidates = texts.keySet();
+            }
+            else {
+                //Intersect the smallest sets first, so we never copy a big one
+                List<Set<Long>> sets = new ArrayList<Set<Long>>();
+                for(String gram : trigrams(needle)) {
+                    Set<Long> ids = postings.get(field).get(gram);
+                    if(ids == null)
+                        return result;
+                    sets.add(ids);
+                }
+                Collections.sort(sets, new Comparator<Set<Long>>() {
+                    public int compare(Set<Long> a, Set<Long> b) {
+                        return a.size() - b.size();
+                    }
+                });
+
+                candidates = new ArrayList<Long>(sets.get(0));
+                for(int i = 1; i < sets.size() && !candidates.isEmpty(); i++)
+                    candidates.retainAll(sets.get(i));
+            }
+
+            //Having all the trigrams doesn't mean they're in the right order
+            for(Long id : candidates) {
+                String text = texts.get(id)[field];
+                if(text != null && text.contains(needle))
+                    result.add(id);
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Sorts restaurant IDs by the restaurants' names, ignoring case, so results can
+     * be paged in memory
+     *
+     * @param ids   The IDs of the restaurants, as returned by search()
+     * @return      A new list of the same IDs, by name then by ID
+     */
+    public static List<Long> sortByName(List<Long> ids) {
+        List<Long> sorted = new ArrayList<Long>(ids);
+
+        lock.readLock().lock();
+        try {
+            Collections.sort(sorted, new Comparator<Long>() {
+                public int compare(Long a, Long b) {
+                    String nameA = name(a);
+                    String nameB = name(b);
+                    int byName = nameA.compareTo(nameB);
+                    return byName != 0 ? byName : a.compareTo(b);
+                }
+            });
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        return sorted;
+    }
+
+    /**
+     * Returns a restaurant's normalized name, or "" if it has none. Must be called
+     * with the lock held.
+     */
+    private static String name(Long id) {
+        String[] text = texts.get(id);
+        return text == null || text[NAME] == null ? "" : text[NAME];
+    }
+
+    /**
+     * Adds a restaurant's fields. Must be called with the write lock held.
+     */
+    private static void add(Long id, String name, String city) {
+        String[] text = new String[] {name == null ? null : normalize(name), city == null ? null : normalize(city)};
+        texts.put(id, text);
+        SpellingSuggester.add(NAME, name);
+        SpellingSuggester.add(CITY, city);
+
+        for(int field = NAME; field <= CITY; field++) {
+            if(text[field] == null)
+                continue;
+
+            for(String gram : trigrams(text[field])) {
+                Set<Long> ids = postings.get(field).get(gram);
+                if(ids == null) {
+                    ids = new HashSet<Long>();
+                    postings.get(field).put(gram, ids);
+                }
+                ids.add(id);
+            }
+        }
+    }
+
+    /**
+     * Removes a restaurant's fields. Must be called with the write lock held.
+     */
+    private static void remove(Long id) {
+        String[] text = texts.remove(id);
+        if(text == null)
+            return;
+
+        for(int field = NAME; field <= CITY; field++) {
+            if(text[field] == null)
+                continue;
+
+            SpellingSuggester.remove(field, text[field]);
+            for(String gram : trigrams(text[field])) {
+                Set<Long> ids = postings.get(field).get(gram);
+                if(ids != null) {
+                    ids.remove(id);
+                    if(ids.isEmpty())
+                        postings.get(field).remove(gram);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the distinct trigrams of a lower cased string
+     */
+    private static Set<String> trigrams(String text) {
+        Set<String> grams = new HashSet<String>();
+        for(int i = 0; i + 3 <= text.length(); i++)
+            grams.add(text.substring(i, i + 3));
+        return grams;
+    }
+
+    private static String normalize(String text) {
+        return text.trim().toLowerCase();
+    }
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * ReviewSummary.java
+ *
+ * The fields of a review shown in a list of reviews, without its full content,
+ * comments or tags.
+ *
+ * Lists of reviews are loaded with a projection query which builds these
+ * directly, so a page of reviews never loads the content of a review past its
+ * excerpt, nor its comments, author or restaurant entities.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.text.*;
+import java.util.*;
+
+public class ReviewSummary {
+
+    /* Maximum number of characters of content shown as an excerpt */
+    public static final int EXCERPT_LENGTH = 300;
+
+    public Long id;                 //ID of the post
+    public String title;            //Title of the post
+    public String excerpt;          //Start of the content, followed by "..." if it was cut
+    public Date postedAt;           //Date posted
+    public String postedOn;         //Day posted, as yyyy-MM-dd, for the scripts rendering pages of reviews
+    public int rating;              //Rating, if any
+    public int likecount;           //Number of likes
+    public Long authorId;           //ID of the user who wrote it
+    public String authorName;       //Full name of the user who wrote it
+
+    /**
+     * Constructor used by the projection query
+     *
+     * @param id            ID of the post
+     * @param title         Title of the post
+     * @param content       The first EXCERPT_LENGTH + 1 characters of the content,
+     *                      so we can tell whether it was cut
+     * @param postedAt      Date posted
+     * @param rating        Rating of the post
+     * @param likecount     Number of likes
+     * @param authorId      ID of the author
+     * @param firstname     First name of the author
+     * @param lastname      Last name of the author
+     */
+    public ReviewSummary(Long id, String title, String content, Date postedAt, int rating, int likecount, Long authorId, String firstname, String lastname) {
+        this.id = id;
+        this.title = title;
+        this.postedAt = postedAt;
+        this.postedOn = postedAt == null ? null : new SimpleDateFormat("yyyy-MM-dd").format(postedAt);
+        this.rating = rating;
+        this.likecount = likecount;
+        this.authorId = authorId;
+        this.authorName = (firstname == null ? "" : firstname) + (lastname == null ? "" : " " + lastname);
+
+        if(content != null && content.length() > EXCERPT_LENGTH)
+            this.excerpt = content.substring(0, EXCERPT_LENGTH) + "...";
+        else
+            this.excerpt = content;
+    }
+}
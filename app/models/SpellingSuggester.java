@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * SpellingSuggester.java
+ *
+ * "Did you mean" suggestions for restaurant names and cities.
+ *
+ * Every distinct name and city is kept in a BK-tree, a tree in which each child
+ * is stored under its edit (Levenshtein) distance from its parent. Because edit
+ * distance obeys the triangle inequality, looking for every term within a
+ * distance d of a misspelling only has to visit the children whose distance is
+ * within d of the distance to their parent, which is a small part of the tree.
+ * Suggestions are found without any database query, and unlike the old prefix
+ * search, typos anywhere in the word are corrected.
+ *
+ * Terms are compared lower cased, but suggested the way they were last saved.
+ * A BK-tree can't remove terms, so the number of restaurants using each term is
+ * counted, and terms no longer used by any restaurant are skipped. Once there
+ * are as many of those as live terms, the tree is rebuilt from the live ones,
+ * so it doesn't keep growing as restaurants are renamed. Terms used by more
+ * restaurants are suggested first when several are equally close.
+ *
+ * The cost of a search grows quickly with the distance allowed: on many similar
+ * names, such as "Per Se 1" to "Per Se 20000", a distance of 3 visits most of
+ * the tree. Short terms are allowed a single typo and longer ones two. Searches
+ * only take a read lock, so they run concurrently.
+ *
+ * RestaurantSearchIndex feeds terms into this class as restaurants are loaded,
+ * created, edited or deleted.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+public class SpellingSuggester {
+
+    /* Largest edit distance searched for, whatever the length of the term */
+    private static final int MAX_DISTANCE = 2;
+
+    /* Number of unused terms below which the trees are never rebuilt */
+    private static final int MIN_DEAD = 1000;
+
+    private static final Tree[] trees = new Tree[] {new Tree(), new Tree()};
+
+    /**
+     * Counts a restaurant using a name or city
+     *
+     * @param field RestaurantSearchIndex.NAME or RestaurantSearchIndex.CITY
+     * @param term  The name or city, as entered
+     */
+    public static void add(int field, String term) {
+        if(term != null && term.trim().length() > 0)
+            trees[field].add(term.trim());
+    }
+
+    /**
+     * Stops counting a restaurant using a name or city
+     *
+     * @param field RestaurantSearchIndex.NAME or RestaurantSearchIndex.CITY
+     * @param term  The name or city, as entered
+     */
+    public static void remove(int field, String term) {
+        if(term != null && term.trim().length() > 0)
+            trees[field].remove(term.trim());
+    }
+
+    /**
+     * Forgets every term
+     */
+    public static void clear() {
+        for(Tree tree : trees)
+            tree.clear();
+    }
+
+    /**
+     * Returns the names or cities closest to a possibly misspelled term, closest
+     * first. The term itself is never suggested.
+     *
+     * @param field RestaurantSearchIndex.NAME or RestaurantSearchIndex.CITY
+     * @param term  What the user typed
+     * @param count The maximum number of suggestions to return
+     * @return      The suggestions, which may be empty
+     */
+    public static List<String> suggest(int field, String term, int count) {
+        if(term == null || term.trim().length() == 0)
+            return new ArrayList<String>();
+
+        //Allow more typos in longer words, but never so many the search visits most of the tree
+        String needle = term.trim().toLowerCase();
+        int maxDistance = needle.length() <= 5 ? 1 : MAX_DISTANCE;
+
+        return trees[field].search(needle, maxDistance, count);
+    }
+
+    /**
+     * Returns the Levenshtein distance between two strings, i.e. the number of
+     * characters which must be inserted, deleted or replaced to turn one into
+     * the other
+     */
+    static int distance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+
+        for(int j = 0; j <= b.length(); j++)
+            previous[j] = j;
+
+        for(int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            for(int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+            }
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        return previous[b.length()];
+    }
+
+    /**
+     * A BK-tree of lower cased terms, with the number of restaurants using each
+     */
+    private static class Tree {
+        private Node root;
+        private final Map<String, Node> nodes = new HashMap<String, Node>();
+        private int dead;               //Number of terms no restaurant uses any more
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        void add(String term) {
+            lock.writeLock().lock();
+            try {
+                String key = term.toLowerCase();
+                Node node = nodes.get(key);
+
+                if(node == null) {
+                    node = new Node(key);
+                    nodes.put(key, node);
+                    insert(node);
+                }
+                else if(node.uses == 0) {
+                    dead--;
+                }
+
+                node.display = term;
+                node.uses++;
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(String term) {
+            lock.writeLock().lock();
+            try {
+                Node node = nodes.get(term.toLowerCase());
+                if(node != null && node.uses > 0 && --node.uses == 0)
+                    dead++;
+
+                if(dead >= MIN_DEAD && dead >= nodes.size() - dead)
+                    rebuild();
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void clear() {
+            lock.writeLock().lock();
+            try {
+                root = null;
+                nodes.clear();
+                dead = 0;
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        List<String> search(String needle, int maxDistance, int count) {
+            lock.readLock().lock();
+            try {
+                return find(needle, maxDistance, count);
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Finds the terms closest to a needle. Must be called holding the read lock.
+         */
+        private List<String> find(String needle, int maxDistance, int count) {
+            List<Object[]> found = new ArrayList<Object[]>();    //{distance, node}
+
+            //Walk the tree without recursion, since it may be deep
+            Deque<Node> pending = new ArrayDeque<Node>();
+            if(root != null)
+                pending.push(root);
+
+            while(!pending.isEmpty()) {
+                Node node = pending.pop();
+                int d = distance(needle, node.term);
+
+                if(d > 0 && d <= maxDistance && node.uses > 0)
+                    found.add(new Object[] {d, node});
+
+                //Only children within maxDistance of d can be within maxDistance of the needle
+                for(Map.Entry<Integer, Node> child : node.children.entrySet()) {
+                    if(Math.abs(child.getKey() - d) <= maxDistance)
+                        pending.push(child.getValue());
+                }
+            }
+
+            Collections.sort(found, new Comparator<Object[]>() {
+                public int compare(Object[] a, Object[] b) {
+                    int byDistance = (Integer)a[0] - (Integer)b[0];
+                    return byDistance != 0 ? byDistance : ((Node)b[1]).uses - ((Node)a[1]).uses;
+                }
+            });
+
+            List<String> suggestions = new ArrayList<String>();
+            for(int i = 0; i < found.size() && i < count; i++)
+                suggestions.add(((Node)found.get(i)[1]).display);
+            return suggestions;
+        }
+
+        /**
+         * Rebuilds the tree from the terms which are still used. Must be called
+         * holding the write lock.
+         */
+        private void rebuild() {
+            List<Node> live = new ArrayList<Node>();
+            for(Node node : nodes.values()) {
+                if(node.uses > 0)
+                    live.add(node);
+            }
+
+            root = null;
+            nodes.clear();
+            dead = 0;
+            for(Node old : live) {
+                Node node = new Node(old.term);
+                node.display = old.display;
+                node.uses = old.uses;
+                nodes.put(node.term, node);
+                insert(node);
+            }
+        }
+
+        /**
+         * Adds a node to the tree. Must be called holding the write lock.
+         */
+        private void insert(Node node) {
+            if(root == null) {
+                root = node;
+                return;
+            }
+
+            Node parent = root;
+            while(true) {
+                int d = distance(node.term, parent.term);
+                Node child = parent.children.get(d);
+                if(child == null) {
+                    parent.children.put(d, node);
+                    return;
+                }
+                parent = child;
+            }
+        }
+    }
+
+    private static class Node {
+        final String term;              //Lower cased term
+        String display;                 //Term as it was last entered
+        int uses = 0;                   //Number of restaurants using the term
+        final Map<Integer, Node> children = new HashMap<Integer, Node>();
+
+        Node(String term) {
+            this.term = term;
+        }
+    }
+}
@@ -17,15 +17,22 @@ package models;
 import java.util.*;
 import javax.persistence.*;
 
+import play.*;
 import play.data.binding.*;
 import play.data.validation.*;
+import play.db.jpa.JPA;
 import play.db.jpa.Model;
+import play.exceptions.*;
 
 @Entity
 public class State extends Model implements Comparable<State> {
     @Required
     public String name;                 //The name of the state. In this case, we
                                         //only want the abbreviation, such as "CA"
+
+    @Column(unique = true)
+    public String lookupKey;            //Normalized name, so no other server creates the same
+                                        //state with a different case or spacing
     /**
      * Constructor for a new state object, taking only its name
      * 
@@ -46,20 +53,153 @@ public class State extends Model implements Comparable<State> {
         return states;
     }
 
+    /* Index from normalized state names to IDs */
+    private static final NaturalKeyIndex keys = new NaturalKeyIndex(16);
+
     /**
      * Returns a state with the given name if it exists, creates and returns one
-     * otherwise.
+     * otherwise. Names are compared ignoring case and surrounding spaces.
+     * 
+     * Repeat lookups are answered from memory, without a query. Concurrent
+     * requests for the same new state wait for each other, so only one of them
+     * creates it.
      * 
      * @param name  The name of the state
-     * @return      The state object with the given name
+     * @return      The state object with the given name, or null if name is null
      */
     public static State findOrCreateByName(String name) {
-        State state = State.find("byName", name).first();
-        if(state == null) {
-            state = new State(name);
+        if(name == null)
+            return null;
+
+        String key = NaturalKeyIndex.key(name);
+        Long id = keys.get(key);
+        if(id == null) {
+            synchronized(keys.lockFor(key)) {
+                id = keys.get(key);
+                if(id == null)
+                    id = findIdByName(name);
+                if(id == null)
+                    id = create(name);
+            }
+        }
+
+        return JPA.em().getReference(State.class, id);
+    }
+
+    /**
+     * Loads the names of all states into the index
+     */
+    public static void loadKeys() {
+        List<Object[]> rows = State.find("select s.id, s.name from State s").fetch();
+
+        keys.clear();
+        for(Object[] row : rows)
+            keys.put((Long)row[0], NaturalKeyIndex.key(row[1]));
+    }
+
+    /**
+     * Looks a state up in the database, and adds it to the index if it's found
+     */
+    private static Long findIdByName(String name) {
+        Long id = State.find("select s.id from State s where lower(trim(s.name)) = ?1 order by s.id", NaturalKeyIndex.normalize(name)).first();
+        if(id != null)
+            keys.put(id, NaturalKeyIndex.key(name));
+        return id;
+    }
+
+    /**
+     * Creates a state in the request's transaction. Requests on this server find
+     * it in the index as soon as it's inserted. Should another server create the
+     * same state at the same time, the unique lookup key rejects this one and the
+     * request is rolled back.
+     */
+    private static Long create(String name) {
+        State state = new State(name);
+        try {
             state.save();
         }
-        return state;
+        catch(PersistenceException e) {
+            if(!Transactions.isUniqueViolation(e))
+                throw e;
+            JPA.setRollbackOnly();
+            throw new UnexpectedException("State " + name + " was created by another server at the same time, please try again");
+        }
+        return state.id;
+    }
+
+    /**
+     * Fills in the lookup key of the states saved before it existed. States whose
+     * names only differ by case or spacing are merged into the oldest one first,
+     * since the unique key wouldn't let them be saved again: their users and
+     * restaurants are moved to it, and the duplicates deleted. Must be called
+     * before Restaurant.backfillKeys(), whose keys contain the state.
+     *
+     * @return  The number of states merged
+     */
+    public static int backfillKeys() {
+        if(State.count("lookupKey is null") == 0)
+            return 0;
+
+        List<Object[]> rows = State.find("select s.id, s.name, s.lookupKey from State s order by s.id").fetch();
+
+        Map<String, Long> kept = new HashMap<String, Long>();
+        int merged = 0;
+        for(Object[] row : rows) {
+            Long id = (Long)row[0];
+            String key = NaturalKeyIndex.key(row[1]);
+            Long keep = kept.get(key);
+            if(keep == null) {
+                kept.put(key, id);
+                if(!key.equals(row[2])) {
+                    JPA.em().createQuery("update State s set s.lookupKey = :key where s.id = :id")
+                        .setParameter("key", key)
+                        .setParameter("id", id)
+                        .executeUpdate();
+                }
+                continue;
+            }
+
+            for(String entity : new String[] {"User", "Restaurant"}) {
+                JPA.em().createQuery("update " + entity + " e set e.state = :keep where e.state.id = :id")
+                    .setParameter("keep", JPA.em().getReference(State.class, keep))
+                    .setParameter("id", id)
+                    .executeUpdate();
+            }
+            JPA.em().createQuery("delete from State s where s.id = :id")
+                .setParameter("id", id)
+                .executeUpdate();
+            merged++;
+        }
+
+        if(merged > 0)
+            Logger.warn("Merged %d duplicate states into the oldest state with the same name", merged);
+        return merged;
+    }
+
+    //Keep the unique lookup key in step with the name
+    @PrePersist
+    @PreUpdate
+    void updateLookupKey() {
+        this.lookupKey = NaturalKeyIndex.key(this.name);
+    }
+
+    //Keep the index up to date whenever a state is created, renamed or deleted
+    @PostPersist
+    @PostUpdate
+    void updateKeys() {
+        final Long id = this.id;
+        keys.put(id, NaturalKeyIndex.key(this.name));
+        //Other requests find the state by its name as soon as it's inserted, so forget it if it's rolled back
+        Transactions.afterRollback(new Runnable() {
+            public void run() {
+                keys.remove(id);
+            }
+        });
+    }
+
+    @PostRemove
+    void removeKeys() {
+        keys.remove(this.id);
     }
 
     /**
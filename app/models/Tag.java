@@ -44,15 +44,23 @@ public class Tag extends Model implements Comparable<Tag> {
     }
     
     /**
-     * Returns a map of all tags and the posts they correspond to, grouped by name
+     * Returns a map of all tags and the number of posts they correspond to, grouped
+     * by name. The counts are kept up to date in memory by the TagCloud.
      * 
      * @return A map of all tags
      */
     public static List<Map> getCloud() {
-        List<Map> result = Tag.find(
-            "select new map(t.name as tag, count(p.id) as pound) from Post p join p.tags as t group by t.name"
-        ).fetch();
-        return result;
+        return TagCloud.cloud();
+    }
+
+    /**
+     * Returns the tags used by the most posts, most used first
+     * 
+     * @param amount    The maximum number of tags to return
+     * @return          A map of the most used tags and their number of posts
+     */
+    public static List<Map> getTopTags(int amount) {
+        return TagCloud.top(amount);
     }
     
     /**
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * TagCloud.java
+ *
+ * Materialized count of posts for every tag, used to draw the tag cloud.
+ *
+ * Counting the posts of every tag with a "group by" over the post/tag join table
+ * costs more with every post written. Instead, the counts are kept in memory and
+ * updated by the TagIndex every time a post gains or loses a tag, which covers
+ * posts being created, edited (including Useradmin.save clearing all tags, which
+ * calls Post.indexTags() since it doesn't fire @PostUpdate) and deleted.
+ *
+ * Counts are loaded at startup by the Bootstrap job, from the TagIndex. Should
+ * they ever drift from it, the TagReconciliation job repairs them periodically,
+ * right after repairing the TagIndex itself from the database, so the counts
+ * follow the database without another "group by" over it. A count which changes
+ * while the index is being counted isn't repaired, since the index count may or
+ * may not include that change; it's checked again by the next run instead of
+ * losing the update.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class TagCloud {
+
+    private static final ConcurrentHashMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Changes the number of posts with a tag
+     *
+     * @param tag   The tag
+     * @param delta The number of posts which gained the tag, negative if they lost it
+     */
+    public static void add(String tag, int delta) {
+        AtomicInteger count = counts.get(tag);
+        if(count == null) {
+            counts.putIfAbsent(tag, new AtomicInteger());
+            count = counts.get(tag);
+        }
+        count.addAndGet(delta);
+    }
+
+    /**
+     * Returns the tag cloud: every tag used by at least one post, with its number
+     * of posts, in alphabetical order
+     *
+     * @return A list of maps with the tag under "tag" and the count under "pound"
+     */
+    public static List<Map> cloud() {
+        List<Map> cloud = snapshot();
+        Collections.sort(cloud, new Comparator<Map>() {
+            public int compare(Map a, Map b) {
+                return ((String)a.get("tag")).compareTo((String)b.get("tag"));
+            }
+        });
+        return cloud;
+    }
+
+    /**
+     * Returns the tags used by the most posts, most used first
+     *
+     * @param amount    The maximum number of tags to return
+     * @return          A list of maps with the tag under "tag" and the count under "pound"
+     */
+    public static List<Map> top(int amount) {
+        List<Map> cloud = snapshot();
+        Collections.sort(cloud, new Comparator<Map>() {
+            public int compare(Map a, Map b) {
+                long byCount = (Long)b.get("pound") - (Long)a.get("pound");
+                return byCount != 0 ? (byCount > 0 ? 1 : -1) : ((String)a.get("tag")).compareTo((String)b.get("tag"));
+            }
+        });
+        return new ArrayList<Map>(cloud.subList(0, Math.min(amount, cloud.size())));
+    }
+
+    /**
+     * Counts the posts of every tag in the TagIndex, and replaces every count
+     * which differs, unless it changed while the index was being counted
+     *
+     * @return The number of counts which had to be repaired
+     */
+    public static int reconcile() {
+        //Read the counts before the index, so changes made meanwhile can be told apart
+        Map<String, Integer> before = new HashMap<String, Integer>();
+        for(Map.Entry<String, AtomicInteger> entry : counts.entrySet())
+            before.put(entry.getKey(), entry.getValue().get());
+
+        Map<String, Integer> actual = TagIndex.counts();
+        int repaired = 0;
+
+        for(Map.Entry<String, Integer> entry : actual.entrySet()) {
+            AtomicInteger count = counts.get(entry.getKey());
+            if(count == null) {
+                counts.putIfAbsent(entry.getKey(), new AtomicInteger());
+                count = counts.get(entry.getKey());
+            }
+            Integer expected = before.get(entry.getKey());
+            int previous = expected == null ? 0 : expected;
+            if(previous != entry.getValue() && count.compareAndSet(previous, entry.getValue()))
+                repaired++;
+        }
+
+        //Tags which no longer have any post
+        for(Map.Entry<String, AtomicInteger> entry : counts.entrySet()) {
+            Integer expected = before.get(entry.getKey());
+            if(!actual.containsKey(entry.getKey()) && expected != null && expected != 0 && entry.getValue().compareAndSet(expected, 0))
+                repaired++;
+        }
+
+        return repaired;
+    }
+
+    /**
+     * Copies the counts of every tag used by at least one post
+     */
+    private static List<Map> snapshot() {
+        List<Map> cloud = new ArrayList<Map>();
+        for(Map.Entry<String, AtomicInteger> entry : counts.entrySet()) {
+            int count = entry.getValue().get();
+            if(count > 0) {
+                Map<String, Object> tag = new HashMap<String, Object>();
+                tag.put("tag", entry.getKey());
+                tag.put("pound", (long)count);      //The cloud query used to return count() as a Long
+                cloud.add(tag);
+            }
+        }
+        return cloud;
+    }
+}
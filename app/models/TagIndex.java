@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * TagIndex.java
+ *
+ * In-memory index from tags to the posts tagged with them.
+ *
+ * For every tag, the index keeps a bitmap in which bit N is set if the post with
+ * ID N has the tag. Finding the posts with all, any or none of several tags is
+ * then a matter of AND, OR and AND NOT operations over bitmaps, instead of a
+ * "group by ... having count" join over the post/tag join table. Post IDs must
+ * fit in an int for this to work.
+ *
+ * Post IDs are handed out in increasing order, so walking a bitmap from its
+ * highest bit down lists the posts newest first. Callers load only the page of
+ * posts they're going to display.
+ *
+ * The index is loaded at startup by the Bootstrap job, and the Post model keeps
+ * it up to date whenever a post is saved or deleted. Every tag a post gains or
+ * loses is passed on to the TagCloud counts.
+ *
+ * Should the index ever drift from the database, for example because a post was
+ * indexed by a transaction which was then rolled back, the TagReconciliation
+ * job repairs it periodically. Like the TagCloud's, a post which changes while
+ * the database is being read isn't repaired, and is checked again next time.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+public class TagIndex {
+
+    /* Number of posts per page when listing tagged posts */
+    public static final int PAGE_SIZE = 20;
+
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private static final Map<String, BitSet> postsByTag = new HashMap<String, BitSet>();
+    private static final Map<Long, Set<String>> tagsByPost = new HashMap<Long, Set<String>>();
+    private static final BitSet allPosts = new BitSet();       //Needed to answer NOT queries
+
+    /**
+     * (Re)loads the whole index from the database
+     */
+    public static void load() {
+        List<Long> postIds = Post.find("select p.id from Post p").fetch();
+        List<Object[]> rows = Post.find("select p.id, t.name from Post p join p.tags as t").fetch();
+
+        lock.writeLock().lock();
+        try {
+            postsByTag.clear();
+            tagsByPost.clear();
+            allPosts.clear();
+
+            for(Long postId : postIds) {
+                allPosts.set(postId.intValue());
+                tagsByPost.put(postId, new HashSet<String>());
+            }
+            for(Object[] row : rows) {
+                Long postId = (Long)row[0];
+                String tag = (String)row[1];
+                tagsByPost.get(postId).add(tag);
+                bitmap(tag).set(postId.intValue());
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a post to the index, or updates its tags if it was already there
+     *
+     * @param postId    The ID of the post
+     * @param tags      The names of all the post's tags
+     */
+    public static void put(Long postId, Set<String> tags) {
+        lock.writeLock().lock();
+        try {
+            Set<String> old = tagsByPost.get(postId);
+            if(old == null)
+                old = new HashSet<String>();
+
+            for(String tag : old) {
+                if(!tags.contains(tag)) {
+                    unset(tag, postId);
+                    TagCloud.add(tag, -1);
+                }
+            }
+            for(String tag : tags) {
+                if(!old.contains(tag)) {
+                    bitmap(tag).set(postId.intValue());
+                    TagCloud.add(tag, 1);
+                }
+            }
+
+            tagsByPost.put(postId, new HashSet<String>(tags));
+            allPosts.set(postId.intValue());
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a post from the index
+     *
+     * @param postId    The ID of the post
+     */
+    public static void delete(Long postId) {
+        lock.writeLock().lock();
+        try {
+            Set<String> old = tagsByPost.remove(postId);
+            if(old != null) {
+                for(String tag : old) {
+                    unset(tag, postId);
+                    TagCloud.add(tag, -1);
+                }
+            }
+            allPosts.clear(postId.intValue());
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the posts which have all of some tags, at least one of some others,
+     * and none of some others. Any of the three may be null or empty to be ignored,
+     * but at least one of all and any must be given.
+     *
+     * @param all   Tags the posts must all have
+     * @param any   Tags of which the posts must have at least one
+     * @param none  Tags the posts must not have
+     * @return      A bitmap of the IDs of the posts found, which the caller may modify
+     */
+    public static BitSet query(String[] all, String[] any, String[] none) {
+        lock.readLock().lock();
+        try {
+            BitSet result = null;
+
+            if(all != null) {
+                for(String tag : all) {
+                    BitSet posts = postsByTag.get(tag);
+                    if(posts == null)
+                        return new BitSet();
+
+                    if(result == null)
+                        result = (BitSet)posts.clone();
+                    else
+                        result.and(posts);
+                }
+            }
+
+            if(any != null && any.length > 0) {
+                BitSet union = new BitSet();
+                for(String tag : any) {
+                    BitSet posts = postsByTag.get(tag);
+                    if(posts != null)
+                        union.or(posts);
+                }
+
+                if(result == null)
+                    result = union;
+                else
+                    result.and(union);
+            }
+
+            //Only excluding tags would mean starting from every post
+            if(result == null)
+                result = (BitSet)allPosts.clone();
+
+            if(none != null) {
+                for(String tag : none) {
+                    BitSet posts = postsByTag.get(tag);
+                    if(posts != null)
+                        result.andNot(posts);
+                }
+            }
+
+            return result;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the newest post IDs of a query result, one page at a time
+     *
+     * @param posts     The bitmap returned by query()
+     * @param before    Only return IDs lower than this, or null for the first page
+     * @param size      The maximum number of IDs to return
+     * @return          The post IDs, newest first. Empty if before is out of
+     *                  the range of post IDs, since it can't come from a page.
+     */
+    public static List<Long> newest(BitSet posts, Long before, int size) {
+        List<Long> ids = new ArrayList<Long>();
+
+        //Cursors come from the browser, so reject those no page could have returned
+        if(before != null && (before < 1 || before > Integer.MAX_VALUE))
+            return ids;
+
+        int id = posts.previousSetBit(before == null ? posts.length() - 1 : before.intValue() - 1);
+        while(id >= 0 && ids.size() < size) {
+            ids.add((long)id);
+            id = id == 0 ? -1 : posts.previousSetBit(id - 1);
+        }
+
+        return ids;
+    }
+
+    /**
+     * Reads the tags of every post in the database, and repairs the posts whose
+     * tags in the index differ, passing the changes on to the TagCloud. Posts
+     * which were saved or deleted while the database was being read are left
+     * alone, since the database may or may not include the change.
+     *
+     * @return The number of posts which had to be repaired
+     */
+    public static int reconcile() {
+        //put() always replaces a post's set, so a post whose set is still the same one wasn't changed meanwhile
+        Map<Long, Set<String>> before;
+        lock.readLock().lock();
+        try {
+            before = new HashMap<Long, Set<String>>(tagsByPost);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        List<Long> postIds = Post.find("select p.id from Post p").fetch();
+        List<Object[]> rows = Post.find("select p.id, t.name from Post p join p.tags as t").fetch();
+
+        Map<Long, Set<String>> actual = new HashMap<Long, Set<String>>();
+        for(Long postId : postIds)
+            actual.put(postId, new HashSet<String>());
+        for(Object[] row : rows) {
+            Set<String> tags = actual.get((Long)row[0]);
+            if(tags != null)
+                tags.add((String)row[1]);
+        }
+
+        int repaired = 0;
+        lock.writeLock().lock();
+        try {
+            for(Map.Entry<Long, Set<String>> post : actual.entrySet()) {
+                Set<String> indexed = before.get(post.getKey());
+                if(tagsByPost.get(post.getKey()) == indexed && (indexed == null || !indexed.equals(post.getValue()))) {
+                    put(post.getKey(), post.getValue());
+                    repaired++;
+                }
+            }
+
+            //Posts which are no longer in the database
+            for(Map.Entry<Long, Set<String>> post : before.entrySet()) {
+                if(!actual.containsKey(post.getKey()) && tagsByPost.get(post.getKey()) == post.getValue()) {
+                    delete(post.getKey());
+                    repaired++;
+                }
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+
+        return repaired;
+    }
+
+    /**
+     * Returns the number of posts of every tag in the index
+     *
+     * @return The number of posts of every tag used by at least one post
+     */
+    public static Map<String, Integer> counts() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        lock.readLock().lock();
+        try {
+            for(Map.Entry<String, BitSet> tag : postsByTag.entrySet())
+                counts.put(tag.getKey(), tag.getValue().cardinality());
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the tags of a post, without loading them from the database
+     *
+     * @param postId    The ID of the post
+     * @return          The names of its tags, empty if it has none or isn't indexed
+     */
+    public static Set<String> tags(Long postId) {
+        lock.readLock().lock();
+        try {
+            Set<String> tags = tagsByPost.get(postId);
+            return tags == null ? Collections.<String>emptySet() : new HashSet<String>(tags);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of posts with a tag
+     *
+     * @param tag   The tag
+     * @return      The number of posts tagged with it
+     */
+    public static int count(String tag) {
+        lock.readLock().lock();
+        try {
+            BitSet posts = postsByTag.get(tag);
+            return posts == null ? 0 : posts.cardinality();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the bitmap of a tag, creating it if needed. Must be called with the
+     * write lock held.
+     */
+    private static BitSet bitmap(String tag) {
+        BitSet posts = postsByTag.get(tag);
+        if(posts == null) {
+            posts = new BitSet();
+            postsByTag.put(tag, posts);
+        }
+        return posts;
+    }
+
+    /**
+     * Clears a post's bit in a tag's bitmap, and drops bitmaps which become empty.
+     * Must be called with the write lock held.
+     */
+    private static void unset(String tag, Long postId) {
+        BitSet posts = postsByTag.get(tag);
+        if(posts != null) {
+            posts.clear(postId.intValue());
+            if(posts.isEmpty())
+                postsByTag.remove(tag);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Timeline.java
+ *
+ * In-memory home timelines, i.e. the newest posts written by the people a user
+ * is following.
+ *
+ * Timelines are built with fan-out-on-write: when a post is written, its id is
+ * pushed onto the timeline of every follower of the author, so reading a
+ * timeline never has to join followerRelation to Post. Each timeline is a
+ * fixed size ring buffer, so the newest N post ids can be read in constant time.
+ *
+ * Authors with a huge number of followers (like the ones created by
+ * Debug.follow_me) would turn every one of their posts into thousands of writes.
+ * Their posts go to an outbox of their own instead, which is merged into the
+ * timelines of their followers at read time.
+ *
+ * Only the timelines of the timeline.cached users who read theirs most recently
+ * are kept in memory, so users who stopped reading don't keep theirs forever.
+ * Posts pushed onto a timeline don't count as reads, or a user following
+ * active authors would never be dropped. A timeline which isn't in memory is
+ * rebuilt from the database the next time it is read. Since timelines only
+ * store ids, posts which were deleted since they were pushed should simply be
+ * skipped by the caller when the posts are loaded.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import play.*;
+
+public class Timeline {
+
+    /* Number of post ids kept for each timeline */
+    public static final int CAPACITY = Integer.parseInt(Play.configuration.getProperty("timeline.size", "200"));
+
+    /* Authors with more followers than this don't fan out their posts on write */
+    public static final int FANOUT_LIMIT = Integer.parseInt(Play.configuration.getProperty("timeline.fanout.limit", "1000"));
+
+    /* Maximum number of timelines kept in memory */
+    public static final int CACHED = Integer.parseInt(Play.configuration.getProperty("timeline.cached", "10000"));
+
+    //Least recently read timelines come first. Reads move a timeline to the end themselves, so pushes don't.
+    private static final LinkedHashMap<Long, Entries> timelines = new LinkedHashMap<Long, Entries>() {
+        protected boolean removeEldestEntry(Map.Entry<Long, Entries> eldest) {
+            return size() > CACHED;
+        }
+    };
+    private static final ConcurrentHashMap<Long, Entries> outboxes = new ConcurrentHashMap<Long, Entries>();
+
+    /**
+     * Pushes a newly written post onto the timelines of the author's followers,
+     * or onto the author's outbox if they have too many followers to fan out to.
+     * Should be called after the post has been saved, so it has an id.
+     *
+     * @param post  The post which was just written
+     */
+    public static void fanOut(Post post) {
+        User author = post.author;
+        long postedAt = post.postedAt.getTime();
+
+        long[] followerIds = FollowerGraph.followersOf(author.id);
+
+        if(followerIds.length > FANOUT_LIMIT) {
+            Entries outbox = outboxes.get(author.id);
+            if(outbox == null) {
+                outboxes.putIfAbsent(author.id, new Entries(CAPACITY));
+                outbox = outboxes.get(author.id);
+            }
+            outbox.add(postedAt, post.id);
+            return;
+        } //else
+
+        //Timelines which aren't in memory will pick the post up when they are rebuilt
+        List<Entries> inMemory = new ArrayList<Entries>();
+        synchronized(timelines) {
+            for(long followerId : followerIds) {
+                Entries timeline = timelines.get(followerId);
+                if(timeline != null)
+                    inMemory.add(timeline);
+            }
+        }
+        for(Entries timeline : inMemory)
+            timeline.add(postedAt, post.id);
+    }
+
+    /**
+     * Returns the ids of the newest posts written by the people a user is following,
+     * newest first.
+     *
+     * @param userId    The ID of the user whose timeline to read
+     * @param amount    The maximum number of post ids to return
+     * @return          The post ids, newest first
+     */
+    public static List<Long> latest(Long userId, int amount) {
+        Entries timeline;
+        synchronized(timelines) {
+            timeline = timelines.remove(userId);
+            if(timeline != null)
+                timelines.put(userId, timeline);
+        }
+
+        if(timeline == null) {
+            //Rebuilt without holding the lock, so other users' reads don't wait for the query
+            Entries rebuilt = rebuild(userId);
+            synchronized(timelines) {
+                timeline = timelines.get(userId);
+                if(timeline == null) {
+                    timeline = rebuilt;
+                    timelines.put(userId, timeline);
+                }
+            }
+        }
+
+        //Merge in the posts of heavily followed authors, which weren't fanned out
+        List<Entries> sources = new ArrayList<Entries>();
+        sources.add(timeline);
+        for(Map.Entry<Long, Entries> outbox : outboxes.entrySet()) {
+            if(FollowerGraph.isFollowing(userId, outbox.getKey()))
+                sources.add(outbox.getValue());
+        }
+
+        return merge(sources, amount);
+    }
+
+    /**
+     * Drops a user's timeline from memory so it will be rebuilt on the next read.
+     * Should be called when the user starts or stops following someone.
+     *
+     * @param userId    The ID of the user whose timeline changed
+     */
+    public static void invalidate(Long userId) {
+        synchronized(timelines) {
+            timelines.remove(userId);
+        }
+    }
+
+    /**
+     * Loads a user's timeline from the database
+     *
+     * @param userId    The ID of the user
+     * @return          A new timeline filled with the newest posts of everyone they follow
+     */
+    private static Entries rebuild(Long userId) {
+        List<Object[]> rows = Post.find(
+            "select p.postedAt, p.id from Post p, followerRelation f where f.follower.id = ? and p.author = f.followee order by p.postedAt desc, p.id desc",
+            userId
+        ).fetch(CAPACITY);
+
+        //Add them oldest first, so the ring buffer ends with the newest post
+        Entries timeline = new Entries(CAPACITY);
+        for(int i = rows.size() - 1; i >= 0; i--) {
+            Object[] row = rows.get(i);
+            timeline.add(((Date)row[0]).getTime(), (Long)row[1]);
+        }
+        return timeline;
+    }
+
+    /**
+     * Merges several timelines, newest first, without duplicates
+     *
+     * @param sources   The timelines to merge
+     * @param amount    The maximum number of post ids to return
+     * @return          The newest post ids found in any of the timelines
+     */
+    private static List<Long> merge(List<Entries> sources, int amount) {
+        if(sources.size() == 1)
+            return sources.get(0).newest(amount);
+
+        //Only the newest "amount" entries of each source can make it into the result
+        List<long[]> candidates = new ArrayList<long[]>();
+        for(Entries source : sources)
+            source.newestWithTimes(amount, candidates);
+
+        Collections.sort(candidates, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                if(a[0] != b[0])
+                    return a[0] < b[0] ? 1 : -1;
+                return a[1] < b[1] ? 1 : (a[1] == b[1] ? 0 : -1);
+            }
+        });
+
+        List<Long> result = new ArrayList<Long>();
+        Set<Long> seen = new HashSet<Long>();
+        for(long[] candidate : candidates) {
+            if(result.size() >= amount)
+                break;
+            if(seen.add(candidate[1]))
+                result.add(candidate[1]);
+        }
+        return result;
+    }
+
+    /**
+     * Fixed size ring buffer of (postedAt, post id) pairs, oldest entries are
+     * overwritten first.
+     */
+    private static class Entries {
+        private final long[] times;
+        private final long[] ids;
+        private int next = 0;       //Slot the next entry will be written to
+        private int size = 0;
+
+        Entries(int capacity) {
+            times = new long[capacity];
+            ids = new long[capacity];
+        }
+
+        synchronized void add(long postedAt, long id) {
+            times[next] = postedAt;
+            ids[next] = id;
+            next = (next + 1) % ids.length;
+            if(size < ids.length)
+                size++;
+        }
+
+        synchronized List<Long> newest(int amount) {
+            int count = Math.min(amount, size);
+            List<Long> result = new ArrayList<Long>(count);
+            for(int i = 1; i <= count; i++)
+                result.add(ids[(next - i + ids.length) % ids.length]);
+            return result;
+        }
+
+        synchronized void newestWithTimes(int amount, List<long[]> into) {
+            int count = Math.min(amount, size);
+            for(int i = 1; i <= count; i++) {
+                int slot = (next - i + ids.length) % ids.length;
+                into.add(new long[] {times[slot], ids[slot]});
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Transactions.java
+ *
+ * Helpers for the JPA transaction of the current request or job.
+ *
+ * In-memory indexes and counters must only change once what they mirror is in
+ * the database: changed straight away, they'd keep a write which is rolled
+ * back later, for example because of a validation error or a constraint
+ * violation at commit. afterCommit() and afterRollback() defer such changes
+ * until the transaction is over, using the Hibernate session's transaction
+ * synchronizations.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.sql.*;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+
+import play.*;
+import play.db.jpa.*;
+
+public class Transactions {
+
+    /**
+     * Runs an action once the current transaction is committed. Outside of a
+     * transaction, runs it straight away.
+     *
+     * @param action    The action, which must not touch the database
+     */
+    public static void afterCommit(final Runnable action) {
+        afterCompletion(action, true);
+    }
+
+    /**
+     * Runs an action if the current transaction is rolled back, or fails to
+     * commit. Outside of a transaction, does nothing.
+     *
+     * @param action    The action, which must not touch the database
+     */
+    public static void afterRollback(final Runnable action) {
+        afterCompletion(action, false);
+    }
+
+    /**
+     * Tells whether an exception was caused by a unique constraint violation,
+     * as opposed to any other database error
+     *
+     * @param e     The exception
+     * @return      true if a unique constraint rejected the write
+     */
+    public static boolean isUniqueViolation(Throwable e) {
+        for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if(cause instanceof SQLException) {
+                SQLException sql = (SQLException)cause;
+                //SQL standard unique violation (PostgreSQL, H2, Derby), old H2, MySQL and Oracle
+                if("23505".equals(sql.getSQLState()) || "23001".equals(sql.getSQLState()))
+                    return true;
+                if("23000".equals(sql.getSQLState()) && (sql.getErrorCode() == 1062 || sql.getErrorCode() == 1))
+                    return true;
+            }
+            if(cause.getCause() == cause)
+                break;
+        }
+        return false;
+    }
+
+    private static void afterCompletion(final Runnable action, final boolean onCommit) {
+        if(!JPA.isInsideTransaction() || !JPA.em().getTransaction().isActive()) {
+            if(onCommit)
+                action.run();
+            return;
+        }
+
+        ((Session)JPA.em().getDelegate()).getTransaction().registerSynchronization(new Synchronization() {
+            public void beforeCompletion() {
+            }
+
+            public void afterCompletion(int status) {
+                if((status == Status.STATUS_COMMITTED) != onCommit)
+                    return;
+                try {
+                    action.run();
+                }
+                catch(RuntimeException e) {
+                    Logger.error(e, "Couldn't run an action after the transaction completed");
+                }
+            }
+        });
+    }
+}
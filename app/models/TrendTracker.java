@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * TrendTracker.java
+ *
+ * Detects the tags and restaurants which are trending, i.e. getting the most
+ * posts, comments and likes over the last hour, day or week.
+ *
+ * Rather than running "group by" queries over Post.postedAt and Comment.postedAt,
+ * every post, comment and like is fed to the tracker as it happens. For each
+ * window, every tag and restaurant gets a score which decays exponentially with
+ * time, with a mean lifetime equal to the length of the window, so activity in
+ * the last hour dominates the hourly score while the weekly score changes slowly.
+ *
+ * Decaying every score all the time would be expensive, so scores are stored
+ * relative to a fixed point in time: an event at time t adds e^((t - start) / window)
+ * instead of 1. Every score then decays by the same factor, so comparing stored
+ * scores gives the same ranking as comparing decayed ones. When the weights get
+ * too big, everything is scaled back down and the starting point moves to now.
+ *
+ * Memory is bounded. Only CAPACITY candidates are scored exactly for each window.
+ * Everything else is counted in a count-min sketch, a small fixed-size table of
+ * counters which can overestimate but never underestimate a score. When a key
+ * which isn't a candidate gets a sketch estimate higher than the lowest scored
+ * candidate, it takes that candidate's place.
+ *
+ * The tags of a post are read from the TagIndex, which is kept up to date as
+ * posts are saved, rather than loaded from the database on every like and
+ * comment.
+ *
+ ******************************************************************************/
+
+package models;
+
+import java.util.*;
+
+import play.*;
+
+public class TrendTracker {
+
+    /**
+     * The windows trends are computed over
+     */
+    public enum Window {
+        HOUR(60L * 60 * 1000),
+        DAY(24L * 60 * 60 * 1000),
+        WEEK(7L * 24 * 60 * 60 * 1000);
+
+        final long millis;
+
+        Window(long millis) {
+            this.millis = millis;
+        }
+    }
+
+    /* Number of tags or restaurants scored exactly for each window */
+    public static final int CAPACITY = Integer.parseInt(Play.configuration.getProperty("trending.capacity", "500"));
+
+    /* How much each kind of activity counts towards a trend */
+    public static final double POST_WEIGHT = 1.0;
+    public static final double COMMENT_WEIGHT = 0.5;
+    public static final double LIKE_WEIGHT = 0.25;
+
+    private static final Tracker[] tags = trackers();
+    private static final Tracker[] restaurants = trackers();
+
+    /**
+     * Records a new post
+     *
+     * @param post  The post which was just written
+     */
+    public static void postWritten(Post post) {
+        record(post, POST_WEIGHT);
+    }
+
+    /**
+     * Records a new comment
+     *
+     * @param post  The post which was commented on
+     */
+    public static void commented(Post post) {
+        record(post, COMMENT_WEIGHT);
+    }
+
+    /**
+     * Records a new like
+     *
+     * @param post  The post which was liked
+     */
+    public static void liked(Post post) {
+        record(post, LIKE_WEIGHT);
+    }
+
+    /**
+     * Returns the most trending tags over a window, most trending first
+     *
+     * @param window    The window to compute trends over
+     * @param amount    The maximum number of tags to return
+     * @return          The names of the tags
+     */
+    public static List<String> topTags(Window window, int amount) {
+        return tags[window.ordinal()].top(amount, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the most trending restaurants over a window, most trending first
+     *
+     * @param window    The window to compute trends over
+     * @param amount    The maximum number of restaurants to return
+     * @return          The IDs of the restaurants
+     */
+    public static List<Long> topRestaurants(Window window, int amount) {
+        List<Long> ids = new ArrayList<Long>();
+        for(String key : restaurants[window.ordinal()].top(amount, System.currentTimeMillis()))
+            ids.add(Long.valueOf(key));
+        return ids;
+    }
+
+    /**
+     * Adds some activity on a post to the scores of its tags and restaurant
+     */
+    private static void record(Post post, double weight) {
+        long now = System.currentTimeMillis();
+
+        //The tag index has the tags of every saved post, so likes and comments don't load them
+        Set<String> names = TagIndex.tags(post.id);
+
+        for(Window window : Window.values()) {
+            for(String name : names)
+                tags[window.ordinal()].add(name, weight, now);
+            if(post.restaurant != null)
+                restaurants[window.ordinal()].add(String.valueOf(post.restaurant.id), weight, now);
+        }
+    }
+
+    private static Tracker[] trackers() {
+        Tracker[] trackers = new Tracker[Window.values().length];
+        for(Window window : Window.values())
+            trackers[window.ordinal()] = new Tracker(window.millis);
+        return trackers;
+    }
+
+    /**
+     * Decaying scores of the candidates of one window, plus the sketch counting
+     * everything else
+     */
+    private static class Tracker {
+        private static final int DEPTH = 4;
+        private static final int WIDTH = 1024;
+        private static final int[] SEEDS = {0x5bd1e995, 0x27d4eb2f, 0x165667b1, 0x85ebca6b};
+
+        /* Scores decayed below this are too old to be trending */
+        private static final double MIN_SCORE = 0.1;
+
+        /* Scale everything down once the exponent of new weights passes this */
+        private static final double MAX_EXPONENT = 50;
+
+        private final long lifetime;                            //Mean lifetime of a score, in milliseconds
+        private long start = System.currentTimeMillis();        //Point in time scores are relative to
+        private final Map<String, Double> candidates = new HashMap<String, Double>();
+        private final double[][] sketch = new double[DEPTH][WIDTH];
+
+        Tracker(long lifetime) {
+            this.lifetime = lifetime;
+        }
+
+        synchronized void add(String key, double weight, long now) {
+            double exponent = (double)(now - start) / lifetime;
+            if(exponent > MAX_EXPONENT) {
+                rescale(Math.exp(-exponent));
+                start = now;
+                exponent = 0;
+            }
+
+            double scaled = weight * Math.exp(exponent);
+            double estimate = Double.MAX_VALUE;
+            for(int row = 0; row < DEPTH; row++) {
+                int column = column(key, row);
+                sketch[row][column] += scaled;
+                estimate = Math.min(estimate, sketch[row][column]);
+            }
+
+            Double score = candidates.get(key);
+            if(score != null) {
+                candidates.put(key, score + scaled);
+            }
+            else if(candidates.size() < CAPACITY) {
+                candidates.put(key, estimate);
+            }
+            else {
+                //Take the place of the lowest candidate if the sketch says we're ahead of it
+                Map.Entry<String, Double> lowest = null;
+                for(Map.Entry<String, Double> candidate : candidates.entrySet()) {
+                    if(lowest == null || candidate.getValue() < lowest.getValue())
+                        lowest = candidate;
+                }
+                if(estimate > lowest.getValue()) {
+                    candidates.remove(lowest.getKey());
+                    candidates.put(key, estimate);
+                }
+            }
+        }
+
+        synchronized List<String> top(int amount, long now) {
+            double decay = Math.exp(-(double)(now - start) / lifetime);
+
+            List<Map.Entry<String, Double>> sorted = new ArrayList<Map.Entry<String, Double>>();
+            for(Map.Entry<String, Double> candidate : candidates.entrySet()) {
+                if(candidate.getValue() * decay >= MIN_SCORE)
+                    sorted.add(candidate);
+            }
+            Collections.sort(sorted, new Comparator<Map.Entry<String, Double>>() {
+                public int compare(Map.Entry<String, Double> a, Map.Entry<String, Double> b) {
+                    return Double.compare(b.getValue(), a.getValue());
+                }
+            });
+
+            List<String> keys = new ArrayList<String>();
+            for(int i = 0; i < sorted.size() && i < amount; i++)
+                keys.add(sorted.get(i).getKey());
+            return keys;
+        }
+
+        private void rescale(double factor) {
+            for(Map.Entry<String, Double> candidate : candidates.entrySet())
+                candidate.setValue(candidate.getValue() * factor);
+            for(double[] row : sketch) {
+                for(int column = 0; column < WIDTH; column++)
+                    row[column] *= factor;
+            }
+        }
+
+        private int column(String key, int row) {
+            int hash = key.hashCode() ^ SEEDS[row];
+            hash *= 0x9e3779b1;
+            hash ^= hash >>> 16;
+            return (hash & 0x7fffffff) % WIDTH;
+        }
+    }
+}
@@ -32,6 +32,7 @@ public class User extends Model {
     public String lastname;         //User's last name
     public String aboutme;          //About Me content on their profile page
     public Blob profilePic;         //Profile picture, if any
+    public String profilePicHash;   //SHA-256 of the profile picture, used to version its URL
 
     public String city;             //City they're from
 
@@ -20,6 +20,10 @@ import play.db.jpa.Model;
 import models.*;
 
 @Entity
+@org.hibernate.annotations.Table(appliesTo = "followerRelation", indexes = {
+    @org.hibernate.annotations.Index(name = "follower_relation_follower", columnNames = {"follower_id", "id"}),
+    @org.hibernate.annotations.Index(name = "follower_relation_followee", columnNames = {"followee_id", "id"})
+})
 public class followerRelation extends Model {
 
     @ManyToOne